@@ -0,0 +1,105 @@
+package org.sagebionetworks;
+
+import java.util.concurrent.Semaphore;
+
+/*
+ * A rate limiter and concurrency governor shared by all the callers of a service.
+ *
+ * Calls are admitted by a token bucket whose rate adapts to the service's responses:
+ * each success raises the rate a little (by about one call per second, per second of
+ * successful calls) while a throttling response (429 or 503) halves it.  Since many
+ * calls which are already in flight will be throttled together, the rate is halved at
+ * most once per THROTTLE_COOLDOWN_MILLIS.  Independently, no more than maxConcurrent
+ * calls may be in progress at once.
+ */
+public class AdaptiveRateLimiter {
+	private static final long THROTTLE_COOLDOWN_MILLIS = 1000L;
+	private static final double DECREASE_FACTOR = 0.5;
+
+	private double minRate;
+	private double maxRate;
+	private double rate;
+	private double tokens;
+	private long lastRefill;
+	private long lastDecrease = Long.MIN_VALUE/2;
+	private Semaphore concurrency;
+
+	/*
+	 * @param initialRate calls per second to start with
+	 * @param minRate the rate is never reduced below this
+	 * @param maxRate the rate is never increased above this
+	 * @param maxConcurrent the most calls which may be in progress at once
+	 */
+	public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate, int maxConcurrent) {
+		if (minRate<=0 || minRate>initialRate || initialRate>maxRate) throw new IllegalArgumentException(
+				"Expected 0 < minRate <= initialRate <= maxRate but found "+minRate+", "+initialRate+", "+maxRate);
+		this.minRate=minRate;
+		this.maxRate=maxRate;
+		this.rate=initialRate;
+		this.tokens=1.0;
+		this.lastRefill=currentTimeMillis();
+		this.concurrency=new Semaphore(maxConcurrent, true);
+	}
+
+	/*
+	 * Waits for a concurrency slot and then for the rate to allow another call.
+	 * Each call to acquire() must be followed by a call to release().
+	 */
+	public void acquire() throws InterruptedException {
+		concurrency.acquire();
+		try {
+			while (true) {
+				long waitMillis;
+				synchronized (this) {
+					refill();
+					if (tokens>=1.0) {
+						tokens -= 1.0;
+						return;
+					}
+					waitMillis = (long)Math.ceil((1.0-tokens)*1000.0/rate);
+				}
+				sleep(Math.max(waitMillis, 1L));
+			}
+		} catch (InterruptedException e) {
+			concurrency.release();
+			throw e;
+		}
+	}
+
+	public void release() {
+		concurrency.release();
+	}
+
+	private void refill() {
+		long now = currentTimeMillis();
+		// allow a burst of up to one second's worth of calls
+		tokens = Math.min(Math.max(rate, 1.0), tokens + (now-lastRefill)*rate/1000.0);
+		lastRefill = now;
+	}
+
+	public synchronized void onSuccess() {
+		refill();
+		rate = Math.min(maxRate, rate + 1.0/rate);
+	}
+
+	public synchronized void onThrottled() {
+		long now = currentTimeMillis();
+		if (now-lastDecrease<THROTTLE_COOLDOWN_MILLIS) return;
+		refill();
+		rate = Math.max(minRate, rate*DECREASE_FACTOR);
+		tokens = Math.min(tokens, 0.0); // stop any burst in progress
+		lastDecrease = now;
+	}
+
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	protected void sleep(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+}
@@ -0,0 +1,193 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.TableUtil.APPLICATION_TEAM_ID;
+import static org.sagebionetworks.TableUtil.APPROVED_ON;
+import static org.sagebionetworks.TableUtil.DATE_REVOKED;
+import static org.sagebionetworks.TableUtil.USER_ID;
+import static org.sagebionetworks.TableUtil.getColumnIndexForName;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.sagebionetworks.repo.model.table.Row;
+import org.sagebionetworks.repo.model.table.RowSet;
+import org.sagebionetworks.repo.model.table.SelectColumn;
+import org.sagebionetworks.schema.adapter.JSONObjectAdapterException;
+import org.sagebionetworks.schema.adapter.org.json.EntityFactory;
+
+/*
+ * An in-memory copy of the approvals table, optionally persisted to a local file
+ * between runs.
+ * 
+ * The replica keeps the latest version of each row, keyed by row ID, and remembers the
+ * highest row version it has seen, so that it can be brought up to date by applying just
+ * the rows changed since (see TableUtil).  Rows are indexed by user ID to answer the 
+ * lookups which would otherwise each require a table query.
+ * 
+ * Rows are never deleted from the approvals table, only appended or updated, so
+ * the replica does not need to track deletions.
+ */
+public class ApprovalTableReplica {
+	private File file;
+	private List<SelectColumn> headers;
+	private String etag;
+	private Map<Long,Row> rows = new LinkedHashMap<Long,Row>();
+	private Map<String,List<Row>> rowsByUserId = new HashMap<String,List<Row>>();
+	private long maxVersion = -1L;
+	
+	/*
+	 * @param file the file to persist the replica to, or null to hold it in memory only
+	 */
+	public ApprovalTableReplica(File file) {
+		this.file=file;
+	}
+	
+	public void load() throws IOException {
+		if (file==null || !file.exists()) return;
+		try {
+			RowSet rowSet = EntityFactory.createEntityFromJSONString(
+					FileUtils.readFileToString(file, "utf-8"), RowSet.class);
+			clear();
+			merge(rowSet.getHeaders(), rowSet.getRows(), null);
+		} catch (JSONObjectAdapterException e) {
+			// an unreadable replica is simply rebuilt from the table
+			System.out.println("Discarding unreadable table replica "+file.getAbsolutePath());
+			clear();
+		}
+	}
+	
+	public void save() throws IOException {
+		if (file==null) return;
+		RowSet rowSet = new RowSet();
+		rowSet.setHeaders(headers);
+		// the etag is not saved: a run always syncs before use, which supplies the current one
+		rowSet.setRows(new ArrayList<Row>(rows.values()));
+		try {
+			// write to a temporary file then atomically replace the old one,
+			// so a crash can't leave a partial or missing replica
+			File temp = new File(file.getAbsolutePath()+".tmp");
+			FileUtils.writeStringToFile(temp, EntityFactory.createJSONStringForEntity(rowSet), "utf-8");
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (JSONObjectAdapterException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public void clear() {
+		headers = null;
+		etag = null;
+		rows.clear();
+		rowsByUserId.clear();
+		maxVersion = -1L;
+	}
+	
+	public long getMaxVersion() {
+		return maxVersion;
+	}
+	
+	public List<SelectColumn> getHeaders() {
+		return headers;
+	}
+	
+	public String getEtag() {
+		return etag;
+	}
+	
+	public int size() {
+		return rows.size();
+	}
+	
+	/*
+	 * Apply rows newly read from the table, replacing any earlier versions of the same rows.
+	 * If the columns have changed, the replica is no longer valid and false is returned.
+	 */
+	public boolean merge(List<SelectColumn> changedHeaders, Collection<Row> changedRows, String newEtag) {
+		if (changedHeaders!=null) {
+			if (headers==null) {
+				headers = new ArrayList<SelectColumn>(changedHeaders);
+			} else if (!headers.equals(changedHeaders)) {
+				return false;
+			}
+		}
+		for (Row row : changedRows) {
+			Row previous = rows.put(row.getRowId(), row);
+			if (previous!=null) {
+				String previousUserId = previous.getValues().get(getColumnIndexForName(headers, USER_ID));
+				rowsByUserId.get(previousUserId).remove(previous);
+			}
+			String userId = row.getValues().get(getColumnIndexForName(headers, USER_ID));
+			List<Row> userRows = rowsByUserId.get(userId);
+			if (userRows==null) {
+				userRows = new ArrayList<Row>();
+				rowsByUserId.put(userId, userRows);
+			}
+			userRows.add(row);
+			if (row.getVersionNumber()!=null && row.getVersionNumber()>maxVersion) {
+				maxVersion = row.getVersionNumber();
+			}
+		}
+		if (newEtag!=null) etag = newEtag;
+		return true;
+	}
+	
+	/*
+	 * Returns the rows for the given users.  If teamId is not null, only rows for that
+	 * team are returned.  If notApprovedOnly is true, only those rows with no approval date
+	 * are returned.
+	 */
+	public List<Row> getRowsForUsers(Collection<String> userIds, String teamId, boolean notApprovedOnly) {
+		List<Row> result = new ArrayList<Row>();
+		if (headers==null) return result;
+		int teamIdIndex = getColumnIndexForName(headers, APPLICATION_TEAM_ID);
+		int approvedOnIndex = getColumnIndexForName(headers, APPROVED_ON);
+		for (String userId : userIds) {
+			List<Row> userRows = rowsByUserId.get(userId);
+			if (userRows==null) continue;
+			for (Row row : userRows) {
+				List<String> values = row.getValues();
+				if (teamId!=null && !teamId.equals(values.get(teamIdIndex))) continue;
+				if (notApprovedOnly && values.get(approvedOnIndex)!=null) continue;
+				result.add(row);
+			}
+		}
+		return result;
+	}
+	
+	/*
+	 * Returns the rows for the given team, approved before the given time and not yet revoked.
+	 * The returned rows contain only the user ID and revocation date columns.
+	 */
+	public Pair<List<SelectColumn>, List<Row>> getExpiredAccess(String teamId, long approvedBefore) {
+		List<Row> result = new ArrayList<Row>();
+		if (headers==null) return new Pair<List<SelectColumn>, List<Row>>(null, result);
+		int userIdIndex = getColumnIndexForName(headers, USER_ID);
+		int teamIdIndex = getColumnIndexForName(headers, APPLICATION_TEAM_ID);
+		int approvedOnIndex = getColumnIndexForName(headers, APPROVED_ON);
+		int dateRevokedIndex = getColumnIndexForName(headers, DATE_REVOKED);
+		for (Row row : rows.values()) {
+			List<String> values = row.getValues();
+			String approvedOn = values.get(approvedOnIndex);
+			if (!teamId.equals(values.get(teamIdIndex)) || approvedOn==null ||
+					Long.parseLong(approvedOn)>=approvedBefore || values.get(dateRevokedIndex)!=null) continue;
+			Row projection = new Row();
+			projection.setRowId(row.getRowId());
+			projection.setVersionNumber(row.getVersionNumber());
+			projection.setValues(new ArrayList<String>(Arrays.asList(new String[] {
+					values.get(userIdIndex), values.get(dateRevokedIndex)})));
+			result.add(projection);
+		}
+		List<SelectColumn> projectionHeaders = Arrays.asList(new SelectColumn[] {
+				headers.get(userIdIndex), headers.get(dateRevokedIndex)});
+		return new Pair<List<SelectColumn>, List<Row>>(projectionHeaders, result);
+	}
+}
@@ -0,0 +1,105 @@
+package org.sagebionetworks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
+
+/*
+ * Waits for the result of an asynchronous Synapse job.
+ * 
+ * Polling uses exponential backoff with jitter, capped at MAX_DELAY_MILLIS, and gives
+ * up once the deadline has passed.  The time each job takes to complete is tracked per
+ * 'shape' (e.g. the SQL of a table query with its literal values removed) and the first
+ * poll is made at a fraction of the typical completion time for that shape.  If the job is
+ * not ready by then, polling restarts from a short delay, so that a job which is only a little 
+ * slower than usual is not collected long after it's ready.  Since a job is only seen to
+ * complete when it is polled, polling early lets the average come back down after a slow
+ * outlier, rather than every later job waiting the outlier's time.
+ */
+public class AsyncJobWaiter {
+	public interface JobResultPoller<T> {
+		// throws SynapseResultNotReadyException if the job has not yet completed
+		T poll() throws SynapseException;
+	}
+	
+	public static final long DEFAULT_DEADLINE_MILLIS = 5*60*1000L;
+	private static final long INITIAL_DELAY_MILLIS = 100L;
+	private static final long MIN_DELAY_MILLIS = 20L;
+	private static final long MAX_DELAY_MILLIS = 5000L;
+	private static final long BACKOFF_MULTIPLIER = 2L;
+	// how much weight each new observation gets in the running average
+	private static final double SMOOTHING_FACTOR = 0.3;
+	// each sleep is randomly shortened by up to this fraction, so concurrent waiters spread out
+	private static final double JITTER_FRACTION = 0.2;
+	// the first poll is made at this fraction of the average completion time
+	private static final double FIRST_POLL_FRACTION = 0.5;
+	
+	private long deadlineMillis;
+	private Map<String,Double> averageCompletionMillis = new HashMap<String,Double>();
+	private Random random = new Random();
+	
+	public AsyncJobWaiter(long deadlineMillis) {
+		this.deadlineMillis=deadlineMillis;
+	}
+	
+	public AsyncJobWaiter() {
+		this(DEFAULT_DEADLINE_MILLIS);
+	}
+	
+	/*
+	 * Reduces a SQL query to its shape by replacing string and numeric literals
+	 * (including lists of them) with '?'
+	 */
+	public static String getQueryShape(String sql) {
+		return sql.replaceAll("'[^']*'", "?").
+				replaceAll("\\b\\d+\\b", "?").
+				replaceAll("\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)", "(?)");
+	}
+	
+	public synchronized long getFirstDelay(String shape) {
+		Double average = averageCompletionMillis.get(shape);
+		if (average==null) return INITIAL_DELAY_MILLIS;
+		return Math.max(MIN_DELAY_MILLIS, Math.min(MAX_DELAY_MILLIS, (long)(FIRST_POLL_FRACTION*average)));
+	}
+	
+	private synchronized void recordCompletion(String shape, long elapsedMillis) {
+		Double average = averageCompletionMillis.get(shape);
+		if (average==null) {
+			averageCompletionMillis.put(shape, (double)elapsedMillis);
+		} else {
+			averageCompletionMillis.put(shape, average+SMOOTHING_FACTOR*(elapsedMillis-average));
+		}
+	}
+	
+	public <T> T waitForResult(String shape, JobResultPoller<T> poller) throws SynapseException, InterruptedException {
+		long start = currentTimeMillis();
+		long delay = getFirstDelay(shape);
+		boolean firstPoll = true;
+		while (true) {
+			long jitteredDelay = delay - (long)(random.nextDouble()*JITTER_FRACTION*delay);
+			long remaining = start + deadlineMillis - currentTimeMillis();
+			if (remaining<=0) throw new RuntimeException("Asynchronous job failed to complete within "+deadlineMillis+" ms.");
+			sleep(Math.min(jitteredDelay, remaining));
+			try {
+				T result = poller.poll();
+				recordCompletion(shape, currentTimeMillis()-start);
+				return result;
+			} catch (SynapseResultNotReadyException e) {
+				// keep waiting
+				delay = firstPoll ? INITIAL_DELAY_MILLIS : Math.min(MAX_DELAY_MILLIS, delay*BACKOFF_MULTIPLIER);
+				firstPoll = false;
+			}
+		}
+	}
+	
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+	
+	protected void sleep(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+}
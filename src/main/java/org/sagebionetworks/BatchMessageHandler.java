@@ -0,0 +1,14 @@
+package org.sagebionetworks;
+
+import java.util.List;
+
+/*
+ * A message handler which can work on several messages at once.
+ */
+public interface BatchMessageHandler extends MessageHandler {
+	/*
+	 * @return the outcome for each message, in the order given:  null if the 
+	 * message was handled, otherwise the exception which prevented it
+	 */
+	List<Exception> handleMessageContents(List<byte[]> messageContents) throws InterruptedException;
+}
@@ -0,0 +1,63 @@
+package org.sagebionetworks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Runs a batch of independent tasks on a bounded pool of worker threads.
+ * 
+ * The returned futures are all complete and are in the same order as the given tasks,
+ * so callers can merge the results deterministically.  With a pool size of one the
+ * tasks are simply run, in order, on the calling thread.
+ */
+public class BoundedExecutor {
+	private int poolSize;
+
+	public BoundedExecutor(int poolSize) {
+		if (poolSize<1) throw new IllegalArgumentException("Pool size must be at least 1 but was "+poolSize);
+		this.poolSize=poolSize;
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	public <T> List<Future<T>> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException {
+		if (poolSize==1 || tasks.size()<=1) {
+			List<Future<T>> result = new ArrayList<Future<T>>();
+			for (Callable<T> task : tasks) {
+				FutureTask<T> future = new FutureTask<T>(task);
+				future.run();
+				result.add(future);
+			}
+			return result;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(poolSize, tasks.size()));
+		try {
+			return executor.invokeAll(tasks);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/*
+	 * Returns the result of a completed task, rethrowing whatever exception the task threw
+	 */
+	public static <T> T getResult(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) throw (Exception)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw e;
+		}
+	}
+
+}
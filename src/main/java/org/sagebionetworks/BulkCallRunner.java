@@ -0,0 +1,47 @@
+package org.sagebionetworks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/*
+ * Runs a batch of independent calls concurrently and reports which of them failed
+ * rather than stopping at the first failure.  The calls are not rate limited here:
+ * Synapse calls share the budget enforced by the Synapse client (see SynapseClientFactory).
+ * 
+ * Each call is made on behalf of one or more keys (e.g. users).  The result maps each
+ * key for which some call failed to the first such failure.
+ */
+public class BulkCallRunner<K> {
+	private BoundedExecutor executor;
+	private List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+	private List<List<K>> callKeys = new ArrayList<List<K>>();
+
+	public BulkCallRunner(int poolSize) {
+		this.executor = new BoundedExecutor(poolSize);
+	}
+
+	public void add(List<K> keys, Callable<Void> call) {
+		calls.add(call);
+		callKeys.add(keys);
+	}
+
+	public Map<K, Exception> run() throws InterruptedException {
+		List<Future<Void>> futures = executor.invokeAll(calls);
+		Map<K, Exception> failures = new LinkedHashMap<K, Exception>();
+		for (int i=0; i<futures.size(); i++) {
+			try {
+				BoundedExecutor.getResult(futures.get(i));
+			} catch (Exception e) {
+				for (K key : callKeys.get(i)) {
+					if (!failures.containsKey(key)) failures.put(key, e);
+				}
+			}
+		}
+		return failures;
+	}
+
+}
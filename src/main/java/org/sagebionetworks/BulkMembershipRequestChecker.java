@@ -0,0 +1,17 @@
+package org.sagebionetworks;
+
+import java.util.Collection;
+import java.util.Set;
+
+import org.sagebionetworks.client.exceptions.SynapseException;
+
+/*
+ * A MembershipRequestChecker which can check many users of a team at once.
+ */
+public interface BulkMembershipRequestChecker extends MembershipRequestChecker {
+	/*
+	 * Returns those of the given users who have an open membership request for the given team.
+	 */
+	public Set<String> getUsersWithMembershipRequests(String teamId, Collection<String> userIds) throws SynapseException;
+
+}
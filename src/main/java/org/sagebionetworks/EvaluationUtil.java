@@ -1,10 +1,12 @@
 package org.sagebionetworks;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -102,11 +104,20 @@ public class EvaluationUtil {
 		}
 	}
 
-	public File downloadSubmissionFile(Submission submission) throws SynapseException, IOException {
+	/*
+	 * Returns the content of the submitted file, read straight from the download URL into
+	 * memory.  Submissions are emails so they are small enough to hold in memory, and this
+	 * avoids leaving a temporary file behind for every submission processed.
+	 */
+	public byte[] downloadSubmissionContent(Submission submission) throws SynapseException, IOException {
 		String fileHandleId = getFileHandleIdFromEntityBundle(submission.getEntityBundleJSON());
-		File temp = File.createTempFile("temp", null);
-		synapseClient.downloadFromSubmission(submission.getId(), fileHandleId, temp);
-		return temp;
+		URL url = synapseClient.getFileTemporaryUrlForSubmissionFileHandle(submission.getId(), fileHandleId);
+		InputStream is = url.openStream();
+		try {
+			return IOUtils.toByteArray(is);
+		} finally {
+			is.close();
+		}
 	}
 
 	private static String getFileHandleIdFromEntityBundle(String s) {
@@ -18,10 +18,14 @@ public class ExponentialBackoffRunner {
 	private static int NUM_503_RETRY_ATTEMPTS = 16; // 272 min (4h:32m)
 	private static long INITIAL_BACKOFF_MILLIS = 500L;
 	private static long BACKOFF_MULTIPLIER = 2L;
+	private static final int STATUS_TOO_MANY_REQUESTS = 429;
+	private static final int STATUS_SERVICE_UNAVAILABLE = 503;
 
 	private int numRetryAttempts;
 	private List<Class<? extends SynapseServerException>> noRetryTypes  = null;
 	private List<Integer> noRetryStatuses;
+	// if true, only retry when the server has said it is too busy (429 or 503)
+	private boolean retryThrottlingOnly = false;
 
 	public ExponentialBackoffRunner(List<Class<? extends SynapseServerException>> noRetryTypes, Integer[] noRetryStatuses, int numRetryAttempts) {
 		this.noRetryTypes=noRetryTypes;
@@ -29,6 +33,16 @@ public class ExponentialBackoffRunner {
 		this.numRetryAttempts=numRetryAttempts;
 	}
 
+	/*
+	 * @param retryThrottlingOnly if true, retry only when the server has declined the request
+	 * with a 429 or 503 status, since the request was then not carried out.  This is for calls
+	 * which are not safe to repeat.
+	 */
+	public ExponentialBackoffRunner(List<Class<? extends SynapseServerException>> noRetryTypes, Integer[] noRetryStatuses, int numRetryAttempts, boolean retryThrottlingOnly) {
+		this(noRetryTypes, noRetryStatuses, numRetryAttempts);
+		this.retryThrottlingOnly=retryThrottlingOnly;
+	}
+
 	public ExponentialBackoffRunner() {
 		this.noRetryTypes=Collections.EMPTY_LIST;
 		this.numRetryAttempts=DEFAULT_NUM_RETRY_ATTEMPTS;
@@ -40,6 +54,16 @@ public class ExponentialBackoffRunner {
 		return e.getMessage();
 	}
 
+	/*
+	 * @return true if the exception shows the server declined the request as too busy
+	 */
+	static boolean isThrottled(Throwable t) {
+		if (!(t instanceof SynapseServerException)) return false;
+		if (t instanceof SynapseTooManyRequestsException || t instanceof SynapseServiceUnavailable) return true;
+		int statusCode = ((SynapseServerException)t).getStatusCode();
+		return statusCode==STATUS_TOO_MANY_REQUESTS || statusCode==STATUS_SERVICE_UNAVAILABLE;
+	}
+
 	/**
 	 * 
 	 * Note, the total sleep time before giving up is:
@@ -51,22 +75,34 @@ public class ExponentialBackoffRunner {
 	 * @throws IOException
 	 * @throws ServiceException
 	 */
-	public <T> T execute(Executable<T> executable) throws Throwable {
+	public <T> T execute(final Executable<T> executable) throws Throwable {
+		return execute(new Invocation<T>() {
+			@Override
+			public T invoke(Object target, Object[] args, int attempt) throws Throwable {
+				return executable.execute();
+			}}, null, null);
+	}
+
+	/*
+	 * Invokes the given invocation on the target, retrying as above.  Passing the target
+	 * and arguments in, rather than capturing them, allows one invocation to be reused.
+	 */
+	public <T> T execute(Invocation<T> invocation, Object target, Object[] args) throws Throwable {
 		long backoff = INITIAL_BACKOFF_MILLIS;
 		Throwable lastException=null;
 		int i = 0;
 		while (true) {
 			try {
-				return executable.execute();
+				return invocation.invoke(target, args, i);
 			} catch (UnknownSynapseServerException e) {
 				Integer statusCode = e.getStatusCode();
-				if (noRetryStatuses.contains(statusCode)) {
+				if (noRetryStatuses.contains(statusCode) || (retryThrottlingOnly && !isThrottled(e))) {
 						log.severe("Found status code "+statusCode+". Will not retry: "+exceptionMessage(e)); 
 						throw e;	
 				}
 				lastException=e;
 			} catch (SynapseServerException e) {
-				if (noRetryTypes.contains(e.getClass())) {
+				if (noRetryTypes.contains(e.getClass()) || (retryThrottlingOnly && !isThrottled(e))) {
 						log.severe("Will not retry: "+exceptionMessage(e)); 
 						throw e;	
 				}
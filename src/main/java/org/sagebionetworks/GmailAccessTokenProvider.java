@@ -0,0 +1,156 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Util.getProperty;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.http.Consts;
+import org.apache.http.HttpException;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/*
+ * Provides the OAuth access token used to connect to the Gmail account.
+ *
+ * The token is exchanged for the configured refresh token and cached until
+ * shortly before it expires.  Once it is within REFRESH_AHEAD_MILLIS of expiring
+ * a new token is requested in the background, while the cached one continues
+ * to be handed out, so callers only wait for the very first exchange (or if the
+ * cached token has actually expired).  All exchanges share one pooled HTTP client.
+ */
+public class GmailAccessTokenProvider {
+	private static final String TOKEN_ENDPOINT = "https://accounts.google.com/o/oauth2/token";
+
+	// a token is not used if it expires within this time
+	private static final long EXPIRY_MARGIN_MILLIS = 60*1000L;
+	// a token is refreshed in the background if it expires within this time
+	private static final long REFRESH_AHEAD_MILLIS = 5*60*1000L;
+	// used if the token endpoint does not say when the token expires
+	private static final long DEFAULT_EXPIRES_IN_SECONDS = 3600L;
+
+	private static final int MAX_TRIES = 5;
+	private static final long INITIAL_BACKOFF=500L;
+
+	private static final CloseableHttpClient HTTP_CLIENT =
+			HttpClients.custom().setConnectionManager(new PoolingHttpClientConnectionManager()).build();
+
+	private String accessToken = null;
+	private long expiresAt = 0L;
+	private boolean refreshInProgress = false;
+
+	private ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "gmail-token-refresh");
+			thread.setDaemon(true); // don't keep the application alive
+			return thread;
+		}});
+
+	public synchronized String getAccessToken() throws Exception {
+		long now = currentTimeMillis();
+		if (accessToken==null || now>=expiresAt-EXPIRY_MARGIN_MILLIS) {
+			refresh();
+		} else if (now>=expiresAt-REFRESH_AHEAD_MILLIS && !refreshInProgress) {
+			refreshInProgress = true;
+			refreshExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+					} catch (Exception e) {
+						// the cached token is still good; we'll try again next time
+						System.out.println("Failed to refresh Gmail access token in the background:\n\t"+e.getMessage());
+					} finally {
+						synchronized (GmailAccessTokenProvider.this) {
+							refreshInProgress = false;
+						}
+					}
+				}});
+		}
+		return accessToken;
+	}
+
+	private void refresh() throws Exception {
+		long requestedAt = currentTimeMillis();
+		Pair<String,Long> tokenAndExpiresIn = withExpBackoff(new Callable<Pair<String,Long>>(){
+			@Override
+			public Pair<String,Long> call() throws Exception {
+				return requestAccessToken();
+			}});
+		synchronized (this) {
+			accessToken = tokenAndExpiresIn.getFirst();
+			// measure from when the request was made, to be conservative
+			expiresAt = requestedAt + tokenAndExpiresIn.getSecond()*1000L;
+		}
+	}
+
+	private static <T> T withExpBackoff(Callable<T> callable) throws Exception {
+		long backoff=INITIAL_BACKOFF;
+		for (int i=0; i<MAX_TRIES; i++) {
+			try {
+				return callable.call();
+			} catch (Exception e) {
+				if (i>=MAX_TRIES-1) throw e;
+				System.out.println("Encountered error.  Will backoff and try again:\n\t"+e.getMessage());
+			}
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				// continue
+			}
+			backoff *= 2;
+		}
+		// shouldn't make it this far
+		throw new IllegalStateException();
+	}
+
+	/*
+	 * @return the access token and the number of seconds until it expires
+	 */
+	protected Pair<String,Long> requestAccessToken() throws HttpException, IOException {
+		HttpPost post = new HttpPost(TOKEN_ENDPOINT);
+		String clientId = getProperty("GOOGLE_OAUTH_CLIENT_ID");
+		String clientSecret = getProperty("GOOGLE_OAUTH_CLIENT_SECRET");
+		String refreshToken = getProperty("GOOGLE_OAUTH_REFRESH_TOKEN");
+		List<NameValuePair> formparams = new ArrayList<NameValuePair>();
+		formparams.add(new BasicNameValuePair("client_id", clientId));
+		formparams.add(new BasicNameValuePair("client_secret", clientSecret));
+		formparams.add(new BasicNameValuePair("refresh_token", refreshToken));
+		formparams.add(new BasicNameValuePair("grant_type", "refresh_token"));
+		UrlEncodedFormEntity entity = new UrlEncodedFormEntity(formparams, Consts.UTF_8);
+		post.setEntity(entity);
+		CloseableHttpResponse response = HTTP_CLIENT.execute(post);
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode>=300) throw new RuntimeException("When trying to authenticate with Google: "+response.getStatusLine().toString());
+			JSONObject obj=(JSONObject)JSONValue.parse(
+					new InputStreamReader(response.getEntity().getContent()));
+			Number expiresIn = (Number)obj.get("expires_in");
+			return new Pair<String,Long>((String)obj.get("access_token"),
+					expiresIn==null ? DEFAULT_EXPIRES_IN_SECONDS : expiresIn.longValue());
+		} finally {
+			// closing the response returns the connection to the pool
+			response.close();
+		}
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+}
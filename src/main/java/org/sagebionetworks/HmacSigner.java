@@ -0,0 +1,80 @@
+package org.sagebionetworks;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/*
+ * Computes and checks HMAC signatures with a fixed key.
+ * 
+ * The key is decoded once, and each thread keeps its own initialized Mac, since a
+ * Mac is not thread safe but is costly to create.  Signatures are compared in
+ * constant time so that verification reveals nothing about the expected signature.
+ */
+public class HmacSigner {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	
+	private final String algorithm;
+	private final SecretKeySpec secretKey;
+	
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance(algorithm);
+				mac.init(secretKey);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+	
+	public HmacSigner(String algorithm, byte[] secretKey) {
+		this.algorithm=algorithm;
+		this.secretKey=new SecretKeySpec(secretKey, algorithm);
+	}
+	
+	public static HmacSigner fromBase64EncodedKey(String algorithm, String base64EncodedSecretKey) {
+		return new HmacSigner(algorithm, Base64.decodeBase64(base64EncodedSecretKey.getBytes()));
+	}
+	
+	/*
+	 * Returns the raw signature of the UTF-8 encoding of the given data.
+	 */
+	public byte[] sign(String data) {
+		// doFinal() resets the Mac, ready for the next use on this thread
+		return macs.get().doFinal(data.getBytes(UTF_8));
+	}
+	
+	/*
+	 * Returns the raw signature of the given range of bytes.
+	 */
+	public byte[] sign(byte[] data, int offset, int length) {
+		Mac mac = macs.get();
+		mac.update(data, offset, length);
+		return mac.doFinal();
+	}
+	
+	/*
+	 * Returns the Base64 encoded signature, as (ASCII) bytes
+	 */
+	public byte[] signBase64(String data) {
+		return Base64.encodeBase64(sign(data));
+	}
+	
+	/*
+	 * Checks that the given Base64 encoded signature is that of the given data.
+	 */
+	public boolean verifyBase64(String data, String base64Signature) {
+		if (base64Signature==null) return false;
+		return MessageDigest.isEqual(signBase64(data), base64Signature.getBytes(US_ASCII));
+	}
+
+}
@@ -17,45 +17,43 @@
 
 package org.sagebionetworks;
 
-import static javax.mail.Folder.READ_ONLY;
 import static org.sagebionetworks.Util.getProperty;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.TreeMap;
-import java.util.concurrent.Callable;
 
 import javax.mail.Address;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.UIDFolder;
 import javax.mail.URLName;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 
-import org.apache.http.Consts;
 import org.apache.http.HttpException;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicNameValuePair;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPSSLStore;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UIDSet;
 import com.sun.mail.smtp.SMTPTransport;
 import com.sun.mail.util.BASE64EncoderStream;
 
@@ -74,15 +72,40 @@ public class IMAPClient {
 
 	private Session session;
 	private IMAPStore imapStore;
+	private MailSyncCheckpoint checkpoint;
+	// folders are kept open between calls, to avoid reopening them for each operation
+	private Map<String, IMAPFolder> openFolders = new HashMap<String, IMAPFolder>();
 	
 	private void init() throws Exception {
 		if (session==null) {
 			session = getSession("imap.gmail.com", 993, false);
 		}
+		if (imapStore!=null && !imapStore.isConnected()) {
+			// the server dropped the connection since we last used it.
+			// the session holds the access token, so reconnect with a new one
+			openFolders.clear();
+			imapStore = null;
+			session = getSession("imap.gmail.com", 993, false);
+		}
 		if (imapStore==null) {
 			imapStore = connectToImap("imap.gmail.com", 993, session);
 		}
-
+		if (checkpoint==null) {
+			String checkpointFile = getProperty("MAIL_SYNC_CHECKPOINT_FILE", true);
+			checkpoint = new MailSyncCheckpoint(checkpointFile==null ? null : new File(checkpointFile));
+			checkpoint.load();
+		}
+	}
+	
+	private IMAPFolder openFolder(String folderName) throws Exception {
+		init();
+		IMAPFolder folder = openFolders.get(folderName);
+		if (folder==null || !folder.isOpen()) {
+			folder = (IMAPFolder)imapStore.getFolder(folderName);
+			folder.open(Folder.READ_WRITE);
+			openFolders.put(folderName, folder);
+		}
+		return folder;
 	}
 
 	/**
@@ -135,167 +158,252 @@ public class IMAPClient {
 		return store;
 	}
 
-	public void sendMessage(Address from, Address[] to, String subject, MimeMultipart content) throws Exception {
-		try {
+	private static final String SMTP_HOST = "smtp.gmail.com";
+	private static final int SMTP_PORT = 587;
+	
+	private Session smtpSession;
+	private SMTPTransportPool smtpTransportPool;
+	
+	private synchronized SMTPTransportPool getSMTPTransportPool() {
+		if (smtpTransportPool==null) {
 			// from http://stackoverflow.com/questions/12503303/javamail-api-in-android-using-xoauth/12821612#12821612
 			// NOTE we do not use the same Session that the other methods in this class use, as that
 			// Session fails to send out messsages.
 		    Properties props = new Properties();
-		    String smtpHost = "smtp.gmail.com";
-		    int smtpPort = 587;
 		    props.put("mail.smtp.starttls.enable", "true");
 		    props.put("mail.smtp.starttls.required", "true");
 		    props.put("mail.smtp.sasl.enable", "false");
-		    props.put("mail.smtp.host", smtpHost);
-		    props.put("mail.smtp.port", ""+smtpPort);
-		    Session session = Session.getInstance(props);
-		    session.setDebug(false);
-			Message message = new MimeMessage(session);
+		    props.put("mail.smtp.host", SMTP_HOST);
+		    props.put("mail.smtp.port", ""+SMTP_PORT);
+		    smtpSession = Session.getInstance(props);
+		    smtpSession.setDebug(false);
+		    smtpTransportPool = new SMTPTransportPool(Util.getIntProperty("SMTP_POOL_SIZE", 1)) {
+				@Override
+				protected SMTPTransport createTransport() throws Exception {
+				    final URLName unusedUrlName = null;
+				    SMTPTransport transport = new SMTPTransport(smtpSession, unusedUrlName);
+				    // If the password is non-null, SMTP tries to do AUTH LOGIN.
+				    final String emptyPassword = null;
+				    transport.connect(SMTP_HOST, SMTP_PORT, getProperty("GMAIL_ADDRESS"), emptyPassword);
+					String oauthToken = getGmailOAuthAccessToken();
+					byte[] response = String.format("user=%s\1auth=Bearer %s\1\1", 
+							getProperty("GMAIL_ADDRESS"), oauthToken).getBytes();
+				    response = BASE64EncoderStream.encode(response);
+				    transport.issueCommand("AUTH XOAUTH2 " + new String(response), 235);
+				    return transport;
+				}};
+		}
+		return smtpTransportPool;
+	}
+
+	/*
+	 * Sends a message over a pooled, authenticated SMTP connection, so that 
+	 * sending a series of messages does not repeat the connection handshake.
+	 */
+	public void sendMessage(Address from, Address[] to, String subject, MimeMultipart content) throws Exception {
+		try {
+			SMTPTransportPool pool = getSMTPTransportPool();
+			Message message = new MimeMessage(smtpSession);
 			message.setFrom(from);
 			message.setRecipients(Message.RecipientType.TO, to);
 			message.setSubject(subject);
 			message.setContent(content);
-			
-		    final URLName unusedUrlName = null;
-		    SMTPTransport transport = new SMTPTransport(session, unusedUrlName);
-		    // If the password is non-null, SMTP tries to do AUTH LOGIN.
-		    final String emptyPassword = null;
-		    transport.connect(smtpHost, smtpPort, getProperty("GMAIL_ADDRESS"), emptyPassword);
-			String oauthToken = getGmailOAuthAccessToken();
-			byte[] response = String.format("user=%s\1auth=Bearer %s\1\1", 
-					getProperty("GMAIL_ADDRESS"), oauthToken).getBytes();
-		    response = BASE64EncoderStream.encode(response);
-		    transport.issueCommand("AUTH XOAUTH2 " + new String(response), 235);
-		    transport.sendMessage(message, to);
+			pool.sendMessage(message, to);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
-	private static final int MAX_TRIES = 5;
-	private static final long INITIAL_BACKOFF=500L;
+	/*
+	 * Sends a message which is already addressed, over a pooled SMTP connection
+	 */
+	public void sendMessage(MimeMessage message) throws Exception {
+		getSMTPTransportPool().sendMessage(message, message.getAllRecipients());
+	}
 	
-	private static String withExpBackoff(Callable<String> callable) throws Exception {
-		long backoff=INITIAL_BACKOFF;
-		for (int i=0; i<MAX_TRIES; i++) {
-			try {
-				return callable.call();
-			} catch (Exception e) {
-				if (i>=MAX_TRIES-1) throw e;
-				System.out.println("Encountered error.  Will backoff and try again:\n\t"+e.getMessage());
-			}
-			try {
-				Thread.sleep(backoff);
-			} catch (InterruptedException e) {
-				// continue
-			}
-			backoff *= 2;
+	/*
+	 * Closes the pooled SMTP connections and the IMAP connection
+	 */
+	public synchronized void close() throws MessagingException {
+		if (smtpTransportPool!=null) smtpTransportPool.close();
+		for (IMAPFolder folder : openFolders.values()) {
+			if (folder.isOpen()) folder.close(false);
 		}
-		// shouldn't make it this far
-		throw new IllegalStateException();
+		openFolders.clear();
+		if (imapStore!=null) imapStore.close();
+		imapStore = null;
 	}
 	
-	private static String getGmailOAuthAccessToken() throws Exception {
-		return withExpBackoff(new Callable<String>(){
-			@Override
-			public String call() throws Exception {
-				return getGmailOAuthAccessTokenIntern();
-			}});
-	}
+	// shared by all clients, so the token is exchanged once and reused until it nears expiry
+	private static final GmailAccessTokenProvider TOKEN_PROVIDER = new GmailAccessTokenProvider();
 	
-	private static String getGmailOAuthAccessTokenIntern() throws HttpException, IOException {
-		CloseableHttpClient httpclient = HttpClients.createDefault();
-		HttpPost post = new HttpPost("https://accounts.google.com/o/oauth2/token");
-		String clientId = getProperty("GOOGLE_OAUTH_CLIENT_ID");
-		String clientSecret = getProperty("GOOGLE_OAUTH_CLIENT_SECRET");
-		String refreshToken = getProperty("GOOGLE_OAUTH_REFRESH_TOKEN");
-		List<NameValuePair> formparams = new ArrayList<NameValuePair>();
-		formparams.add(new BasicNameValuePair("client_id", clientId));
-		formparams.add(new BasicNameValuePair("client_secret", clientSecret));
-		formparams.add(new BasicNameValuePair("refresh_token", refreshToken));
-		formparams.add(new BasicNameValuePair("grant_type", "refresh_token"));
-		UrlEncodedFormEntity entity = new UrlEncodedFormEntity(formparams, Consts.UTF_8);
-		post.setEntity(entity);
-		CloseableHttpResponse response = httpclient.execute(post);
-		int statusCode = response.getStatusLine().getStatusCode();
-		if (statusCode>=300) throw new RuntimeException("When trying to authenticate with Google: "+response.getStatusLine().toString());
-		try {
-			JSONObject obj=(JSONObject)JSONValue.parse(
-					new InputStreamReader(response.getEntity().getContent()));
-			return (String)obj.get("access_token");
-		} finally {
-			response.close();
-		} 
+	private static String getGmailOAuthAccessToken() throws Exception {
+		return TOKEN_PROVIDER.getAccessToken();
 	}
 	
+	private static final int DEFAULT_FETCH_WINDOW_SIZE = 20;
+	private static final int DEFAULT_MOVE_BATCH_SIZE = 50;
+
 	/**
 	 * Check for new messages in the 'in-folder'.
-	 * Retrieve all the new messages and pass each one to the given 
+	 * Retrieve the new messages and pass each one to the given 
 	 * 'handler' for processing.  Then move the messages to the output 
-	 * folder
+	 * folder.
+	 * 
+	 * Only messages which arrived since the last run are retrieved:  
+	 * The highest UID handled is kept in a checkpoint (persisted if 
+	 * MAIL_SYNC_CHECKPOINT_FILE is set).  Messages which were handled
+	 * but could not be moved on a previous run are moved without being
+	 * handled again.
+	 * 
+	 * Messages are downloaded one at a time and handed off as they arrive, 
+	 * so only one message is held in memory, unless the handler is a 
+	 * BatchMessageHandler in which case it is given a window of messages
+	 * at a time.  The checkpoint is saved after each window of 
+	 * MAIL_FETCH_WINDOW_SIZE messages and the handled messages are moved 
+	 * in batches of MAIL_MOVE_BATCH_SIZE, so a failure part way through 
+	 * causes at most one window to be handled again.
+	 * 
+	 * Only messages which were handled successfully are moved.  If any
+	 * message in a window fails the checkpoint is not advanced past it, 
+	 * no further windows are processed and the first failure is thrown.
 	 */
 	public void processNewMessages(MessageHandler handler) throws Exception {
-		init();
 		String inFolder = getProperty("MAIL_IN_FOLDER");
 		String outFolder = getProperty("MAIL_OUT_FOLDER");
-		Map<Integer, byte[]> newMessages = getMessages(inFolder);
-		int[] msgNumbers = new int[newMessages.size()];
-		int i = 0;
-		for (Integer msgNum : newMessages.keySet()) {
-			byte[] message = newMessages.get(msgNum);
-			handler.handleMessageContent(message);
-			msgNumbers[i++] = msgNum;
+		int windowSize = Util.getIntProperty("MAIL_FETCH_WINDOW_SIZE", DEFAULT_FETCH_WINDOW_SIZE);
+		int moveBatchSize = Util.getIntProperty("MAIL_MOVE_BATCH_SIZE", DEFAULT_MOVE_BATCH_SIZE);
+		IMAPFolder folder = openFolder(inFolder);
+		long uidValidity = folder.getUIDValidity();
+		long lastUid = checkpoint.getLastUid(inFolder, uidValidity);
+		List<Long> handledUids = new ArrayList<Long>();
+		if (lastUid>0) {
+			for (Message message : folder.getMessagesByUID(1L, lastUid)) {
+				if (message!=null) handledUids.add(folder.getUID(message));
+			}
 		}
-		if (outFolder!=null) moveMessages(inFolder, outFolder, msgNumbers);
+		// note, the server returns the last message if there's none above 'lastUid'
+		Message[] messages = folder.getMessagesByUID(lastUid+1, UIDFolder.LASTUID);
+		System.out.println("processNewMessages: messageCount="+folder.getMessageCount());
+		int newMessageCount = 0;
+		long totalSize = 0L;
+		Exception firstFailure = null;
+		for (int start=0; start<messages.length && firstFailure==null; start+=windowSize) {
+			Message[] window = Arrays.copyOfRange(messages, start, Math.min(start+windowSize, messages.length));
+			// get the UIDs and sizes of the messages in the window in one round trip
+			FetchProfile fetchProfile = new FetchProfile();
+			fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+			fetchProfile.add(IMAPFolder.FetchProfileItem.SIZE);
+			folder.fetch(window, fetchProfile);
+			List<Message> newMessages = new ArrayList<Message>();
+			for (Message message : window) {
+				if (folder.getUID(message)>lastUid) newMessages.add(message);
+			}
+			List<Exception> outcomes = handleMessages(handler, newMessages);
+			for (int i=0; i<newMessages.size(); i++) {
+				Exception outcome = outcomes.get(i);
+				if (outcome!=null) {
+					outcome.printStackTrace();
+					if (firstFailure==null) firstFailure=outcome;
+					continue;
+				}
+				Message message = newMessages.get(i);
+				long uid = folder.getUID(message);
+				handledUids.add(uid);
+				if (firstFailure==null) lastUid = uid;
+				newMessageCount++;
+				totalSize += message.getSize();
+			}
+			checkpoint.setLastUid(inFolder, uidValidity, lastUid);
+			checkpoint.save();
+			if (outFolder!=null && handledUids.size()>=moveBatchSize) {
+				moveMessages(inFolder, outFolder, toArray(handledUids));
+				handledUids.clear();
+			}
+		}
+		System.out.println("processNewMessages: new messages="+newMessageCount+", bytes="+totalSize);
+		if (outFolder!=null && !handledUids.isEmpty()) moveMessages(inFolder, outFolder, toArray(handledUids));
+		if (firstFailure!=null) throw firstFailure;
+	}
+	
+	/*
+	 * @return the outcome for each message, null if it was handled, otherwise the exception it raised
+	 */
+	private static List<Exception> handleMessages(MessageHandler handler, List<Message> messages) throws Exception {
+		if (handler instanceof BatchMessageHandler) {
+			List<byte[]> contents = new ArrayList<byte[]>();
+			for (Message message : messages) contents.add(getMessageContent(message));
+			return ((BatchMessageHandler)handler).handleMessageContents(contents);
+		}
+		List<Exception> result = new ArrayList<Exception>();
+		for (Message message : messages) {
+			byte[] content = getMessageContent(message);
+			try {
+				handler.handleMessageContent(content);
+				result.add(null);
+			} catch (Exception e) {
+				result.add(e);
+			}
+		}
+		return result;
+	}
+	
+	private static long[] toArray(List<Long> list) {
+		long[] result = new long[list.size()];
+		for (int i=0; i<result.length; i++) result[i]=list.get(i);
+		return result;
 	}
-
 
 	/**
-	 * Connects to Gmail account and downloads messages
+	 * Downloads the full content of a message
 	 */
-	public Map<Integer, byte[]> getMessages(String emailFolder) throws Exception {
-		init();
-		Folder folder = imapStore.getFolder(emailFolder);
-		folder.open(READ_ONLY);  
-		Map<Integer, byte[]> ans = new TreeMap<Integer, byte[]>();
-		System.out.println("getMessages: messageCount="+folder.getMessageCount());
+	private static byte[] getMessageContent(Message message) throws Exception {
+		// don't set the \Seen flag just by reading the message
+		((IMAPMessage)message).setPeek(true);
+		// write the content to a byte array
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(message.getSize(), 32));
 		try {
-			for (int i=0; i<folder.getMessageCount(); i++) {
-				Integer msgNum = i+1;
-				Message message = folder.getMessage(msgNum);
-				// write the content to a byte array
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				try {
-					message.writeTo(baos);
-					baos.flush();
-					byte[] bytes = baos.toByteArray();
-					ans.put(msgNum, bytes);
-				} finally {
-					baos.close();
-				}
-			} // end for i (iterating through messages)
+			message.writeTo(baos);
+			baos.flush();
+			return baos.toByteArray();
 		} finally {
-			folder.close(false);
+			baos.close();
 		}
-		return ans;
 	}
 
-	public void moveMessages(String fromFolderName, String toFolderName, int[] messageIndices) throws Exception {
-		init();
-		Folder fromFolder = imapStore.getFolder(fromFolderName);
+	/**
+	 * Moves the messages having the given UIDs, using the IMAP MOVE extension 
+	 * if the server supports it, otherwise by copying and then deleting.
+	 */
+	public void moveMessages(String fromFolderName, final String toFolderName, long[] uids) throws Exception {
+		IMAPFolder fromFolder = openFolder(fromFolderName);
+		if (imapStore.hasCapability("MOVE")) {
+			final String uidSet = UIDSet.toString(UIDSet.createUIDSets(uids));
+			fromFolder.doCommand(new IMAPFolder.ProtocolCommand() {
+				@Override
+				public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+					Argument args = new Argument();
+					args.writeAtom(uidSet);
+					args.writeString(BASE64MailboxEncoder.encode(toFolderName));
+					protocol.simpleCommand("UID MOVE", args);
+					return null;
+				}});
+			return;
+		}
+		Message[] messagesToMove = fromFolder.getMessagesByUID(uids);
+		List<Message> present = new ArrayList<Message>();
+		for (Message message : messagesToMove) if (message!=null) present.add(message);
+		messagesToMove = present.toArray(new Message[present.size()]);
 		Folder toFolder = imapStore.getFolder(toFolderName);
-		fromFolder.open(Folder.READ_WRITE);    
-		toFolder.open(Folder.READ_WRITE);  
-		try {
-			Message[] messagesToMove = fromFolder.getMessages(messageIndices);
-			toFolder.appendMessages(messagesToMove); // this 'tags' messages as being in *both* folders
+		fromFolder.copyMessages(messagesToMove, toFolder); // this 'tags' messages as being in *both* folders
 
-			Flags flags = new Flags();
-			flags.add(Flag.DELETED);
-			fromFolder.setFlags(messagesToMove, flags, true); // this removes the 'tag' from the 'from' folder
-		} finally {
-			fromFolder.close(true);
-			toFolder.close(true);
+		Flags flags = new Flags();
+		flags.add(Flag.DELETED);
+		fromFolder.setFlags(messagesToMove, flags, true); // this removes the 'tag' from the 'from' folder
+		if (imapStore.hasCapability("UIDPLUS")) {
+			fromFolder.expunge(messagesToMove);
+		} else {
+			fromFolder.expunge();
 		}
 	}
 
@@ -0,0 +1,12 @@
+package org.sagebionetworks;
+
+/*
+ * A call which can be retried by ExponentialBackoffRunner.  Unlike Executable the
+ * target and arguments are passed in, so one instance can serve every call.
+ */
+public interface Invocation<T> {
+	/*
+	 * @param attempt zero for the first attempt, one for the first retry, etc.
+	 */
+	T invoke(Object target, Object[] args, int attempt) throws Throwable;
+}
@@ -42,7 +42,16 @@ public class LambdaEntryPoint implements RequestHandler<APIGatewayProxyRequestEv
 	@Override
 	public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
 		LambdaLogger logger = context.getLogger();
-		
+		try {
+			return handleRequestIntern(event, logger);
+		} finally {
+			// the metrics are static, so they are reset for the next request to this container
+			String synapseCallSummary = SynapseCallMetrics.summarizeAndReset();
+			if (synapseCallSummary.length()>0) logger.log(synapseCallSummary);
+		}
+	}
+	
+	private APIGatewayProxyResponseEvent handleRequestIntern(APIGatewayProxyRequestEvent event, LambdaLogger logger) {
 		APIGatewayProxyResponseEvent result = new APIGatewayProxyResponseEvent();
 		result.setIsBase64Encoded(false);
 		Map<String,String> responseHeaders = new HashMap<String,String>();
@@ -0,0 +1,80 @@
+package org.sagebionetworks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A fixed-size, thread safe histogram of non-negative values (e.g. latencies in microseconds)
+ * from which percentiles can be read.
+ *
+ * Values below 2*SUB_BUCKET_COUNT are counted exactly.  Above that each power of two is
+ * divided into SUB_BUCKET_COUNT equal buckets, so a percentile is reported to within
+ * 1/SUB_BUCKET_COUNT (about 3%) of the true value, whatever the range of the values.
+ * Recording a value is a few bit operations and an atomic increment.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1<<SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = 2*SUB_BUCKET_COUNT;
+	// enough buckets for any non-negative long
+	private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE)+1;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private AtomicLong totalCount = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value<0) value=0;
+		counts.incrementAndGet(bucketIndex(value));
+		totalCount.incrementAndGet();
+		long currentMax = max.get();
+		while (value>currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	static int bucketIndex(long value) {
+		if (value<LINEAR_LIMIT) return (int)value;
+		int shift = 63-Long.numberOfLeadingZeros(value)-SUB_BUCKET_BITS;
+		// the top SUB_BUCKET_BITS+1 bits of the value, which lie in [SUB_BUCKET_COUNT, 2*SUB_BUCKET_COUNT)
+		int subBucket = (int)(value>>>shift);
+		return shift*SUB_BUCKET_COUNT+subBucket;
+	}
+
+	/*
+	 * @return the largest value which falls in the given bucket
+	 */
+	static long highestValueInBucket(int index) {
+		if (index<LINEAR_LIMIT) return index;
+		int shift = index/SUB_BUCKET_COUNT-1;
+		long subBucket = index%SUB_BUCKET_COUNT+SUB_BUCKET_COUNT;
+		return ((subBucket+1)<<shift)-1;
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/*
+	 * @param percentile between 0 and 100
+	 * @return a value at or above which lie no more than (100-percentile)% of the recorded values,
+	 * or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = totalCount.get();
+		if (total==0) return 0L;
+		long target = Math.max(1L, (long)Math.ceil(percentile/100.0*total));
+		long cumulative = 0L;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			cumulative += counts.get(i);
+			if (cumulative>=target) return Math.min(highestValueInBucket(i), getMax());
+		}
+		// values recorded while we were reading
+		return getMax();
+	}
+
+}
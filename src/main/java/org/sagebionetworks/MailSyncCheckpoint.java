@@ -0,0 +1,74 @@
+package org.sagebionetworks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/*
+ * Remembers, for each mail folder, the highest IMAP UID which has been handled,
+ * along with the folder's UIDVALIDITY.  UIDs are only meaningful for a given
+ * UIDVALIDITY, so if the server reports a different one the checkpoint for
+ * the folder is ignored and the folder is read from the beginning.
+ *
+ * The checkpoint is optionally persisted to a local file between runs.
+ */
+public class MailSyncCheckpoint {
+	private static final String UID_VALIDITY_SUFFIX = ".uidvalidity";
+	private static final String LAST_UID_SUFFIX = ".lastuid";
+
+	private File file;
+	private Properties properties = new Properties();
+
+	/*
+	 * @param file the file to persist the checkpoint to, or null to hold it in memory only
+	 */
+	public MailSyncCheckpoint(File file) {
+		this.file=file;
+	}
+
+	public synchronized void load() throws IOException {
+		if (file==null || !file.exists()) return;
+		InputStream is = new FileInputStream(file);
+		try {
+			properties.clear();
+			properties.load(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	public synchronized void save() throws IOException {
+		if (file==null) return;
+		// write to a temporary file then atomically replace the old one,
+		// so a crash can't leave a partial or missing checkpoint
+		File temp = new File(file.getAbsolutePath()+".tmp");
+		OutputStream os = new FileOutputStream(temp);
+		try {
+			properties.store(os, "IMAP sync checkpoint");
+		} finally {
+			os.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * @return the last UID handled in the given folder, or 0 if there is none for the given UIDVALIDITY
+	 */
+	public synchronized long getLastUid(String folderName, long uidValidity) {
+		String savedUidValidity = properties.getProperty(folderName+UID_VALIDITY_SUFFIX);
+		if (savedUidValidity==null || Long.parseLong(savedUidValidity)!=uidValidity) return 0L;
+		return Long.parseLong(properties.getProperty(folderName+LAST_UID_SUFFIX, "0"));
+	}
+
+	public synchronized void setLastUid(String folderName, long uidValidity, long lastUid) {
+		properties.setProperty(folderName+UID_VALIDITY_SUFFIX, ""+uidValidity);
+		properties.setProperty(folderName+LAST_UID_SUFFIX, ""+lastUid);
+	}
+
+}
@@ -13,7 +13,6 @@ import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.entity.ContentType;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseException;
@@ -28,9 +27,11 @@ import org.sagebionetworks.schema.adapter.org.json.EntityFactory;
 public class MessageUtil {
 	
 	private SynapseClient synapseClient;
+	private TemplateCache templateCache;
 	
 	public MessageUtil(SynapseClient synapseClient) {
 		this.synapseClient=synapseClient;
+		this.templateCache = new TemplateCache(synapseClient);
 	}
 
 	public static MimeMessage readMessageFromInputStream(InputStream is) throws IOException, MessagingException {
@@ -99,19 +100,12 @@ public class MessageUtil {
 	}
 
 	public String createGenericMessage(UserProfile userProfile, String synapseTemplateId) throws IOException, SynapseException {
-		File temp = File.createTempFile("temp", null);
-		synapseClient.downloadFromFileEntityCurrentVersion(synapseTemplateId, temp);
-		InputStream is = new FileInputStream(temp);
-		try {
-			String message = IOUtils.toString(is);
-			StringBuilder sb = new StringBuilder();
-			sb.append(salutation(userProfile));
-			sb.append("\n");
-			sb.append(message);
-			return sb.toString();
-		} finally {
-			is.close();
-		}
+		String message = templateCache.getTemplate(synapseTemplateId);
+		StringBuilder sb = new StringBuilder();
+		sb.append(salutation(userProfile));
+		sb.append("\n");
+		sb.append(message);
+		return sb.toString();
 	}
 
 
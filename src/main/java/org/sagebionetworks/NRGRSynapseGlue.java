@@ -10,11 +10,12 @@ import static org.sagebionetworks.TableUtil.TOKEN_SENT_DATE;
 import static org.sagebionetworks.TableUtil.USER_ID;
 import static org.sagebionetworks.TableUtil.USER_NAME;
 import static org.sagebionetworks.TableUtil.getColumnIndexForName;
+import static org.sagebionetworks.Util.getIntProperty;
 import static org.sagebionetworks.Util.getProperty;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
@@ -24,15 +25,22 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.mail.Address;
+import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
@@ -40,6 +48,7 @@ import javax.mail.internet.MimeMultipart;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.entity.ContentType;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseException;
@@ -83,6 +92,8 @@ public class NRGRSynapseGlue {
 	private TableUtil tableUtil;
 	private EvaluationUtil evaluationUtil;
 	private IMAPClient mailClient;
+	private UserProfileCache userProfileCache;
+	private OutboundMailQueue outboundMailQueue;
 	
 	private static final Logger logger =
 			Logger.getLogger(NRGRSynapseGlue.class.getName());
@@ -97,8 +108,28 @@ public class NRGRSynapseGlue {
 		this.synapseClient=synapseClient;
 		this.messageUtil = new MessageUtil(synapseClient);
 		this.tableUtil = new TableUtil(synapseClient, getProperty("TABLE_ID"), getProperty("CONFIGURATION_TABLE_ID"));
+		String replicaFile = getProperty("APPROVAL_TABLE_REPLICA_FILE", true);
+		if (!StringUtils.isEmpty(replicaFile)) {
+			tableUtil.setApprovalTableReplica(new ApprovalTableReplica(new File(replicaFile)));
+		}
 		this.evaluationUtil = new EvaluationUtil(synapseClient);
 		this.mailClient = new IMAPClient();
+		this.userProfileCache = new UserProfileCache(synapseClient);
+		this.mrc = new TeamMembershipRequestChecker(synapseClient);
+		String queueDir = getProperty("OUTBOUND_MAIL_QUEUE_DIR", true);
+		this.outboundMailQueue = createOutboundMailQueue(mailClient, StringUtils.isEmpty(queueDir) ?
+				new File(System.getProperty("java.io.tmpdir"), DEFAULT_OUTBOUND_MAIL_QUEUE_DIRECTORY) : new File(queueDir));
+	}
+	
+	// under the temporary directory, so it persists between runs on the same host
+	private static final String DEFAULT_OUTBOUND_MAIL_QUEUE_DIRECTORY = "nrgr-outbound-mail";
+	
+	private static OutboundMailQueue createOutboundMailQueue(IMAPClient mailClient, File directory) {
+		try {
+			return new OutboundMailQueue(directory, mailClient, getIntProperty("OUTBOUND_MAIL_MAX_ATTEMPTS", 5));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	public NRGRSynapseGlue() throws SynapseException {
@@ -121,24 +152,39 @@ public class NRGRSynapseGlue {
 			MessageUtil messageUtil, 
 			TableUtil tableUtil, 
 			EvaluationUtil evaluationUtil,
-			IMAPClient mailClient) {
+			IMAPClient mailClient,
+			File outboundMailQueueDirectory) {
 		this.synapseClient=synapseClient;
 		this.messageUtil=messageUtil;
 		this.tableUtil=tableUtil;
 		this.evaluationUtil=evaluationUtil;
 		this.mailClient=mailClient;
+		this.userProfileCache = new UserProfileCache(synapseClient);
+		this.mrc = new TeamMembershipRequestChecker(synapseClient);
+		this.outboundMailQueue = createOutboundMailQueue(mailClient, outboundMailQueueDirectory);
 	}
 
+	private static final long OUTBOUND_MAIL_SHUTDOWN_TIMEOUT_MILLIS = 60*1000L;
+	
 	/*
 	 * This is the entry point to call via a CRON job
 	 */
 	public static void main(String[] args) throws Exception {
 		NRGRSynapseGlue sg = new NRGRSynapseGlue();
-		sg.processNewApplicants();
-		sg.checkForMail();
-		Map<String,DatasetSettings> settings = sg.getDatasetSettings();
-		sg.approveApplicantsBatch(settings);
-		sg.removeExpiredAccess(settings);
+		try {
+			// send anything left over from earlier runs
+			sg.outboundMailQueue.start();
+			sg.processNewApplicants();
+			sg.checkForMail();
+			Map<String,DatasetSettings> settings = sg.getDatasetSettings();
+			sg.approveApplicantsAndRemoveExpiredAccess(settings);
+		} finally {
+			// give queued mail a chance to go out before closing the connections
+			sg.outboundMailQueue.shutdown(OUTBOUND_MAIL_SHUTDOWN_TIMEOUT_MILLIS);
+			sg.mailClient.close();
+			String synapseCallSummary = SynapseCallMetrics.summarizeAndReset();
+			if (synapseCallSummary.length()>0) System.out.println(synapseCallSummary);
+		}
 	}
 	
 	/*
@@ -191,51 +237,55 @@ public class NRGRSynapseGlue {
 	}
 
 	private static long PAGE_SIZE = 50L;
+	
+	// the number of worker threads used to send out tokens to new applicants
+	private static final String NEW_APPLICANT_THREAD_COUNT = "NEW_APPLICANT_THREAD_COUNT";
 
+	/*
+	 * The data sets are scanned for new membership requests in parallel, then each new applicant
+	 * is sent their token on a pool of NEW_APPLICANT_THREAD_COUNT threads.  The default of 1 
+	 * sends them one after another; more than 1 is needed for the sends to overlap.  The Table is updated in a single batch at the end.  If sending to any applicant fails, the 
+	 * others are still processed and recorded before the first failure is rethrown.
+	 */
 	public void processNewApplicants() throws Exception {
-		List<Row> applicantsProcessed = new ArrayList<Row>();
-		long now = System.currentTimeMillis();
-		for (DatasetSettings datasetSettings : tableUtil.getDatasetSettings().values()) {
-			// process each data set
-			long total = Integer.MAX_VALUE;
-			for (long offset=0; offset<total; offset+=PAGE_SIZE) {
-				PaginatedResults<MembershipRequest> pgs = 
-						synapseClient.getOpenMembershipRequests(datasetSettings.getApplicationTeamId(), 
-								null, PAGE_SIZE, offset);
-				total = pgs.getTotalNumberOfResults();
-				// get just the new requests, omitting the ones for which tokens have already been sent
-				List<MembershipRequest> newMembershipRequests = 
-						tableUtil.getNewMembershipRequests(pgs.getResults());
-				if (newMembershipRequests.isEmpty()) continue;
-	
-				for (MembershipRequest mr : newMembershipRequests) {
-					String userId = mr.getUserId();
-					Date expiresOn = Util.cleanDate(mr.getExpiresOn());
-					Long expiresOnAsLong = expiresOn==null ? null : expiresOn.getTime();
-	
-					String token = TokenUtil.createToken(userId, now, datasetSettings, expiresOnAsLong);
-					UserProfile userProfile = synapseClient.getUserProfile(userId);
-					String messageBody = createTokenMessage(userProfile, token, datasetSettings.getTokenEmailSynapseId());
-					MessageToUser messageToUser = new MessageToUser();
-					messageToUser.setSubject(datasetSettings.getDataDescriptor()+" Data Access Request");
-					Set<String> recipients = new HashSet<String>(Collections.singleton(userId));
-					String ccRecipient = getProperty("CC_RECIPIENT", true);
-					if (ccRecipient!=null) recipients.add(ccRecipient);
-					messageToUser.setRecipients(recipients);
-					messageUtil.sendMessage(messageToUser, messageBody);
-					
-					Row applicantProcessed = new Row();
-					applicantProcessed.setValues(Arrays.asList(new String[]{
-							userId,
-							mr.getTeamId(),
-							userProfile.getUserName(),
-							userProfile.getFirstName(),
-							userProfile.getLastName(),
-							""+now,
-							expiresOnAsLong==null?null:""+expiresOnAsLong
-					}));
-					applicantsProcessed.add(applicantProcessed);
+		final long now = System.currentTimeMillis();
+		BoundedExecutor executor = new BoundedExecutor(getIntProperty(NEW_APPLICANT_THREAD_COUNT, 1));
+		
+		final List<DatasetSettings> datasets = new ArrayList<DatasetSettings>(tableUtil.getDatasetSettings().values());
+		List<Callable<List<MembershipRequest>>> datasetTasks = new ArrayList<Callable<List<MembershipRequest>>>();
+		for (final DatasetSettings datasetSettings : datasets) {
+			datasetTasks.add(new Callable<List<MembershipRequest>>() {
+				@Override
+				public List<MembershipRequest> call() throws Exception {
+					return getNewMembershipRequests(datasetSettings);
 				}
+			});
+		}
+		List<Future<List<MembershipRequest>>> newMembershipRequests = executor.invokeAll(datasetTasks);
+		
+		List<Callable<Row>> applicantTasks = new ArrayList<Callable<Row>>();
+		List<String> applicantIds = new ArrayList<String>();
+		for (int i=0; i<datasets.size(); i++) {
+			final DatasetSettings datasetSettings = datasets.get(i);
+			for (final MembershipRequest mr : BoundedExecutor.getResult(newMembershipRequests.get(i))) {
+				applicantIds.add(mr.getUserId());
+				applicantTasks.add(new Callable<Row>() {
+					@Override
+					public Row call() throws Exception {
+						return processNewApplicant(mr, datasetSettings, now);
+					}
+				});
+			}
+		}
+		userProfileCache.prefetch(applicantIds);
+		List<Row> applicantsProcessed = new ArrayList<Row>();
+		Exception firstFailure = null;
+		for (Future<Row> applicantProcessed : executor.invokeAll(applicantTasks)) {
+			try {
+				applicantsProcessed.add(BoundedExecutor.getResult(applicantProcessed));
+			} catch (Exception e) {
+				e.printStackTrace();
+				if (firstFailure==null) firstFailure=e;
 			}
 		}
 		// update table to show that the email was sent
@@ -255,7 +305,58 @@ public class NRGRSynapseGlue {
 			rowSet.setHeaders(tableUtil.createRowSetHeaders(tableId, columnNames));
 			rowSet.setRows(applicantsProcessed);
 			synapseClient.appendRowsToTable(rowSet, TABLE_UPDATE_TIMEOUT, tableId);
+			tableUtil.approvalTableUpdated();
+		}
+		if (firstFailure!=null) throw firstFailure;
+	}
+	
+	/*
+	 * Page through the open membership requests for the given data set,
+	 * omitting the ones for which tokens have already been sent
+	 */
+	private List<MembershipRequest> getNewMembershipRequests(DatasetSettings datasetSettings) throws Exception {
+		List<MembershipRequest> result = new ArrayList<MembershipRequest>();
+		long total = Integer.MAX_VALUE;
+		for (long offset=0; offset<total; offset+=PAGE_SIZE) {
+			PaginatedResults<MembershipRequest> pgs = 
+					synapseClient.getOpenMembershipRequests(datasetSettings.getApplicationTeamId(), 
+							null, PAGE_SIZE, offset);
+			total = pgs.getTotalNumberOfResults();
+			result.addAll(tableUtil.getNewMembershipRequests(pgs.getResults()));
 		}
+		return result;
+	}
+	
+	/*
+	 * Send the applicant their token, returning the Table row recording that it was sent
+	 */
+	private Row processNewApplicant(MembershipRequest mr, DatasetSettings datasetSettings, long now) throws Exception {
+		String userId = mr.getUserId();
+		Date expiresOn = Util.cleanDate(mr.getExpiresOn());
+		Long expiresOnAsLong = expiresOn==null ? null : expiresOn.getTime();
+
+		String token = TokenUtil.createToken(userId, now, datasetSettings, expiresOnAsLong);
+		UserProfile userProfile = userProfileCache.getUserProfile(userId);
+		String messageBody = createTokenMessage(userProfile, token, datasetSettings.getTokenEmailSynapseId());
+		MessageToUser messageToUser = new MessageToUser();
+		messageToUser.setSubject(datasetSettings.getDataDescriptor()+" Data Access Request");
+		Set<String> recipients = new HashSet<String>(Collections.singleton(userId));
+		String ccRecipient = getProperty("CC_RECIPIENT", true);
+		if (ccRecipient!=null) recipients.add(ccRecipient);
+		messageToUser.setRecipients(recipients);
+		messageUtil.sendMessage(messageToUser, messageBody);
+		
+		Row applicantProcessed = new Row();
+		applicantProcessed.setValues(Arrays.asList(new String[]{
+				userId,
+				mr.getTeamId(),
+				userProfile.getUserName(),
+				userProfile.getFirstName(),
+				userProfile.getLastName(),
+				""+now,
+				expiresOnAsLong==null?null:""+expiresOnAsLong
+		}));
+		return applicantProcessed;
 	}
 	
 	private static final String TOKEN_PLACE_HOLDER = "##token##";
@@ -267,7 +368,6 @@ public class NRGRSynapseGlue {
 
 	// convert incoming mail messages to Submission in the queue
 	public void checkForMail() throws Exception {
-		IMAPClient mailClient = new IMAPClient();
 		String messageParentId = getProperty("MESSAGE_CONTAINER_ENTITY_ID");
 		String evaluationId = getProperty("EVALUATION_ID"); 
 		mailClient.processNewMessages(new SubmissionMessageHandler(synapseClient, messageParentId, evaluationId));
@@ -295,109 +395,145 @@ public class NRGRSynapseGlue {
 	}
 	
 	
-	private final MembershipRequestChecker mrc = new MembershipRequestChecker() {
-		@Override
-		public boolean doesMembershipRequestExist(String teamId, String requesterId) throws SynapseException {
-			PaginatedResults<MembershipRequest> pgs = synapseClient.getOpenMembershipRequests(teamId, requesterId, 1, 0);
-			return pgs.getTotalNumberOfResults()>0;
+	private MembershipRequestChecker mrc;
+	
+	private String myOwnSynapseId = null;
+	
+	private synchronized String getMyOwnSynapseId() throws SynapseException {
+		if (myOwnSynapseId==null) {
+			myOwnSynapseId = synapseClient.getMyProfile().getOwnerId();
 		}
-	};
+		return myOwnSynapseId;
+	}
 	
-	public SubmissionProcessingResult processReceivedSubmissions(List<SubmissionBundle> submissionsToProcess, Map<String,DatasetSettings> settings) {
-		String myOwnSnapseId = null;
+	private static final String SUBMISSION_PROCESSING_THREAD_COUNT = "SUBMISSION_PROCESSING_THREAD_COUNT";
+	
+	/*
+	 * The submissions are downloaded and analyzed on a pool of SUBMISSION_PROCESSING_THREAD_COUNT
+	 * threads.  The default of 1 processes them one after another; more than 1 is needed for 
+	 * them to overlap.  Each submission gets its own result and these are merged in the order
+	 * the submissions were given.
+	 */
+	public SubmissionProcessingResult processReceivedSubmissions(List<SubmissionBundle> submissionsToProcess, final Map<String,DatasetSettings> settings) {
+		BoundedExecutor executor = new BoundedExecutor(getIntProperty(SUBMISSION_PROCESSING_THREAD_COUNT, 1));
+		List<Callable<SubmissionProcessingResult>> tasks = new ArrayList<Callable<SubmissionProcessingResult>>();
+		for (final SubmissionBundle bundle : submissionsToProcess) {
+			tasks.add(new Callable<SubmissionProcessingResult>() {
+				@Override
+				public SubmissionProcessingResult call() throws Exception {
+					return processReceivedSubmission(bundle, settings);
+				}
+			});
+		}
 		SubmissionProcessingResult result = new SubmissionProcessingResult();
-		for (SubmissionBundle bundle : submissionsToProcess) {
-			Submission sub = bundle.getSubmission();
-			SubmissionStatus status = bundle.getSubmissionStatus();
-			status.setStatus(SubmissionStatusEnum.CLOSED); // this is the default, might be overridden
-			result.addProcessedSubmission(status);
+		try {
+			for (Future<SubmissionProcessingResult> submissionResult : executor.invokeAll(tasks)) {
+				result.addAll(BoundedExecutor.getResult(submissionResult));
+			}
+		} catch (Exception e) {
+			// processReceivedSubmission handles its own exceptions so we don't expect to get here
+			throw new RuntimeException(e);
+		}
+		return result;
+	}
+	
+	private SubmissionProcessingResult processReceivedSubmission(SubmissionBundle bundle, Map<String,DatasetSettings> settings) {
+		SubmissionProcessingResult result = new SubmissionProcessingResult();
+		Submission sub = bundle.getSubmission();
+		SubmissionStatus status = bundle.getSubmissionStatus();
+		status.setStatus(SubmissionStatusEnum.CLOSED); // this is the default, might be overridden
+		result.addProcessedSubmission(status);
 
-			InputStream fileIs = null;
-			MimeMessage message = null;
-			try {
-				File temp = evaluationUtil.downloadSubmissionFile(sub);
-				temp.deleteOnExit();
-				message = MessageUtil.readMessageFromFile(temp);
-				if (myOwnSnapseId==null) {
-					myOwnSnapseId = synapseClient.getMyProfile().getOwnerId();
-				}
-				
-				fileIs = new FileInputStream(temp);
-				Set<TokenAnalysisResult> tokenAnalysisResults = 
-						TokenUtil.parseTokensFromInput(IOUtils.toByteArray(fileIs), settings, mrc, System.currentTimeMillis());
-				if (tokenAnalysisResults.isEmpty()) {
-					throw new Exception("No valid token found in file.");
-				}
-				int messageViolatesSubnetRequirementTokenCount = 0;
-				List<TokenAnalysisResult> invalidTokens = new ArrayList<TokenAnalysisResult>();
-				for (TokenAnalysisResult tar : tokenAnalysisResults) {
-					if(tar.isValid()) {
-						List<String> rios = getAllowedIPOriginatingSubnets(tar, settings);
-						if (!canBypassMessageValidation(sub.getUserId(), myOwnSnapseId) &&
-							!rios.isEmpty() && 
-							!OriginValidator.isOriginatingIPInSubnets(message, rios)) {
-							messageViolatesSubnetRequirementTokenCount++;
-						} else {
-							result.addValidToken(tar.getTokenContent());
-						}
-					} else {
-						invalidTokens.add(tar);
-					}
-				}
-				if (messageViolatesSubnetRequirementTokenCount>0) {
-					String reason = "Message lacks X-Originating-IP header or is outside of the allowed subnet.";
-					if (result.getValidTokens().isEmpty()) {
-						throw new Exception(reason);
+		MimeMessage message = null;
+		try {
+			// the content is parsed just once, and shared by the token scan and the origin check
+			byte[] content = evaluationUtil.downloadSubmissionContent(sub);
+			message = MessageUtil.readMessageFromInputStream(new ByteArrayInputStream(content));
+			String myOwnSnapseId = getMyOwnSynapseId();
+			
+			Set<TokenAnalysisResult> tokenAnalysisResults = 
+					TokenUtil.parseTokensFromInput(content, message, settings, mrc, System.currentTimeMillis(), null);
+			if (tokenAnalysisResults.isEmpty()) {
+				throw new Exception("No valid token found in file.");
+			}
+			int messageViolatesSubnetRequirementTokenCount = 0;
+			List<TokenAnalysisResult> invalidTokens = new ArrayList<TokenAnalysisResult>();
+			for (TokenAnalysisResult tar : tokenAnalysisResults) {
+				if(tar.isValid()) {
+					List<String> rios = getAllowedIPOriginatingSubnets(tar, settings);
+					if (!canBypassMessageValidation(sub.getUserId(), myOwnSnapseId) &&
+						!rios.isEmpty() && 
+						!OriginValidator.isOriginatingIPInSubnets(message, rios)) {
+						messageViolatesSubnetRequirementTokenCount++;
 					} else {
-						// This is weird edge case in which the message has the right subnet for some
-						// tokens, but not for others.
-						reason = "For "+messageViolatesSubnetRequirementTokenCount+" tokens, "+reason;
-						EvaluationUtil.addRejectionReasonToStatus(status, reason);
-						result.addMessageToSender(new MimeMessageAndReason(message, reason));
+						result.addValidToken(status, tar.getTokenContent());
 					}
+				} else {
+					invalidTokens.add(tar);
 				}
-				if (!invalidTokens.isEmpty()) {
-					String reason = ""+result.getValidTokens().size()+" valid token(s) and "+
-							invalidTokens.size()+" invalid token(s) were found in this message.";
-					for (TokenAnalysisResult tar : invalidTokens) {
-						reason += "\n\t"+tar.getReason();
-					}
+			}
+			if (messageViolatesSubnetRequirementTokenCount>0) {
+				String reason = "Message lacks X-Originating-IP header or is outside of the allowed subnet.";
+				if (result.getValidTokens().isEmpty()) {
+					throw new Exception(reason);
+				} else {
+					// This is weird edge case in which the message has the right subnet for some
+					// tokens, but not for others.
+					reason = "For "+messageViolatesSubnetRequirementTokenCount+" tokens, "+reason;
 					EvaluationUtil.addRejectionReasonToStatus(status, reason);
 					result.addMessageToSender(new MimeMessageAndReason(message, reason));
 				}
-			} catch (Exception e) {
-				status.setStatus(SubmissionStatusEnum.REJECTED);
-				EvaluationUtil.addRejectionReasonToStatus(status, e.getMessage());
-				if (message!=null) result.addMessageToSender(new MimeMessageAndReason(message, e.getMessage()));
-			} finally {
-				if (fileIs!=null) {
-					try {
-						fileIs.close();
-					} catch (IOException e) {
-						// continue
-					}
+			}
+			if (!invalidTokens.isEmpty()) {
+				String reason = ""+result.getValidTokens().size()+" valid token(s) and "+
+						invalidTokens.size()+" invalid token(s) were found in this message.";
+				for (TokenAnalysisResult tar : invalidTokens) {
+					reason += "\n\t"+tar.getReason();
 				}
+				EvaluationUtil.addRejectionReasonToStatus(status, reason);
+				result.addMessageToSender(new MimeMessageAndReason(message, reason));
 			}
-		} // end for SubmissionBundle bundle ...
-		
+		} catch (Exception e) {
+			status.setStatus(SubmissionStatusEnum.REJECTED);
+			EvaluationUtil.addRejectionReasonToStatus(status, e.getMessage());
+			if (message!=null) result.addMessageToSender(new MimeMessageAndReason(message, e.getMessage()));
+		}
 		return result;
 	}
 	
 	public void approveApplicants(Set<TokenContent> validTokens, Map<String,DatasetSettings> settings) throws Exception {
+		Map<TokenContent, Exception> failures = approveApplicantsAndCollectFailures(validTokens, settings);
+		if (!failures.isEmpty()) {
+			// the others are done, but leave the submissions to be processed again
+			throw new RuntimeException("Failed to approve "+failures.size()+" user(s).");
+		}
+	}
+	
+	/*
+	 * Approves the given applicants, carrying on past any which fail.
+	 * 
+	 * @return the applicants whose approval failed, and why
+	 */
+	private Map<TokenContent, Exception> approveApplicantsAndCollectFailures(Set<TokenContent> validTokens, Map<String,DatasetSettings> settings) throws Exception {
 		// find those not already approved
 		TokenTableLookupResults usersToApprove = tableUtil.getRowsForAcceptedButNotYetApprovedUserIds(validTokens);
 		
 		// create the AccessApprovals in Synapse
-		createAccessApprovals(usersToApprove.getTokens());
+		Map<TokenContent, Exception> failures = createAccessApprovals(usersToApprove.getTokens());
+		Set<TokenContent> approved = new HashSet<TokenContent>(usersToApprove.getTokens());
+		approved.removeAll(failures.keySet());
 		
 		// accept team membership requests
-		acceptTeamMembershipRequests(usersToApprove.getTokens());
+		Map<TokenContent, Exception> admissionFailures = acceptTeamMembershipRequests(approved);
+		approved.removeAll(admissionFailures.keySet());
+		failures.putAll(admissionFailures);
 
 		// send the notifications
-		sendApproveNotifications(usersToApprove.getTokens(), settings);
+		sendApproveNotifications(approved, settings);
 		
 		// update the approval records in the Table
 		RowSet rowSet = usersToApprove.getRowSet();
+		removeRowsForFailures(rowSet, failures.keySet());
 		if (!rowSet.getRows().isEmpty()) {
 			int approvedOrRejectedDateIndex = 
 					TableUtil.getColumnIndexForName(
@@ -408,7 +544,31 @@ public class NRGRSynapseGlue {
 			}
 			String tableId = getProperty("TABLE_ID");
 			synapseClient.appendRowsToTable(rowSet, TABLE_UPDATE_TIMEOUT, tableId);
+			tableUtil.approvalTableUpdated();
+		}
+		
+		for (TokenContent tc : failures.keySet()) {
+			System.out.println("Failed to approve user "+tc.getUserId()+" for team "+tc.getApplicationTeamId()+":");
+			failures.get(tc).printStackTrace();
 		}
+		return failures;
+	}
+	
+	/*
+	 * Removes the rows for the users whose approval failed, so that they stay 'not yet approved'
+	 */
+	private static void removeRowsForFailures(RowSet rowSet, Set<TokenContent> failures) {
+		if (failures.isEmpty() || rowSet.getRows().isEmpty()) return;
+		Set<String> failedKeys = new HashSet<String>();
+		for (TokenContent tc : failures) failedKeys.add(tc.getUserId()+"|"+tc.getApplicationTeamId());
+		int userIdIndex = TableUtil.getColumnIndexForName(rowSet.getHeaders(), USER_ID);
+		int teamIdIndex = TableUtil.getColumnIndexForName(rowSet.getHeaders(), TableUtil.APPLICATION_TEAM_ID);
+		List<Row> remaining = new ArrayList<Row>();
+		for (Row row : rowSet.getRows()) {
+			List<String> values = row.getValues();
+			if (!failedKeys.contains(values.get(userIdIndex)+"|"+values.get(teamIdIndex))) remaining.add(row);
+		}
+		rowSet.setRows(remaining);
 	}
 	
 	// Check for incoming email and if there is a valid attachment then approve them
@@ -422,60 +582,168 @@ public class NRGRSynapseGlue {
 		// notify message sender about any bad messages (missing tokens, etc.)
 		sendRejectionsToMailSender(sprs.getMessagesToSender());
 		
-		approveApplicants(sprs.getValidTokens(), settings);
+		Map<TokenContent, Exception> failures = approveApplicantsAndCollectFailures(sprs.getValidTokens(), settings);
 		
-		// update submission statuses
-		evaluationUtil.updateSubmissionStatusBatch(sprs.getProcessedSubmissions(), evaluationId);
+		// update submission statuses, except for those containing a token whose approval
+		// failed, which are left RECEIVED to be processed again on the next run
+		List<SubmissionStatus> statusesToUpdate = new ArrayList<SubmissionStatus>();
+		for (SubmissionStatus status : sprs.getProcessedSubmissions()) {
+			if (Collections.disjoint(sprs.getValidTokens(status), failures.keySet())) statusesToUpdate.add(status);
+		}
+		evaluationUtil.updateSubmissionStatusBatch(statusesToUpdate, evaluationId);
 
 		System.out.println("Retrieved "+sprs.getProcessedSubmissions().size()+
-				" submissions for approval and accepted "+sprs.getValidTokens().size()+" users.");
+				" submissions for approval and accepted "+(sprs.getValidTokens().size()-failures.size())+" users.");
+		if (!failures.isEmpty()) {
+			throw new RuntimeException("Failed to approve "+failures.size()+" user(s).");
+		}
+	}
+	
+	/*
+	 * Approves the applicants and then revokes expired access.  A failure to approve
+	 * some applicants does not hold up the revocations; it is rethrown at the end.
+	 */
+	public void approveApplicantsAndRemoveExpiredAccess(Map<String,DatasetSettings> settings) throws Exception {
+		Exception approvalFailure = null;
+		try {
+			approveApplicantsBatch(settings);
+		} catch (Exception e) {
+			approvalFailure = e;
+		}
+		try {
+			removeExpiredAccess(settings);
+		} catch (Exception e) {
+			if (approvalFailure==null) throw e;
+			approvalFailure.addSuppressed(e);
+		}
+		if (approvalFailure!=null) throw approvalFailure;
 	}
 	
 	private static final boolean ENABLE_REVOCATION = true;
 	
+	private static final String REVOCATION_THREAD_COUNT = "REVOCATION_THREAD_COUNT";
+	private static final String REVOCATION_CHUNK_SIZE = "REVOCATION_CHUNK_SIZE";
+	
+	/*
+	 * For each dataset the expired approvals are first found, then revoked a chunk of
+	 * REVOCATION_CHUNK_SIZE users (default 100) at a time.  Within a chunk the revocations 
+	 * run on a pool of REVOCATION_THREAD_COUNT threads, within the Synapse client's shared
+	 * rate limit.  The default of 1 makes them one after another; more than 1 is needed for 
+	 * them to overlap.  The table is updated, and the users notified, as each
+	 * chunk completes, so if the job is interrupted the next run picks up with just the
+	 * users not yet marked as revoked.
+	 * 
+	 * A user whose approvals cannot all be revoked, or who cannot be removed from the team,
+	 * is not marked as revoked and so is tried again on the next run.
+	 */
 	public void removeExpiredAccess(Map<String,DatasetSettings> settings) throws Exception {
-		Long now = System.currentTimeMillis();
-		for (String approvalTeamId : settings.keySet()) {
-			DatasetSettings ds = settings.get(approvalTeamId);
+		int chunkSize = getIntProperty(REVOCATION_CHUNK_SIZE, 100);
+		int failureCount = 0;
+		for (final String approvalTeamId : settings.keySet()) {
+			final DatasetSettings ds = settings.get(approvalTeamId);
 			if (ds.getExpiresAfterDays()!=null) {
-				Pair<List<SelectColumn>, RowSet> queryResult = tableUtil.getExpiredAccess(ds);
-				int userIdIndex = getColumnIndexForName(queryResult.getFirst(), USER_ID);
-				int dateRevokedIndex = getColumnIndexForName(queryResult.getFirst(), DATE_REVOKED);
-				RowSet rowSet = queryResult.getSecond();
-				List<String> usersToNotify = new ArrayList<String>();
-				for (Row row : rowSet.getRows()) {
-					List<String> values = row.getValues();
-					String userId = values.get(userIdIndex);
-					usersToNotify.add(userId);
-					// revoke access approvals
-					for (long requirementId : ds.getAccessRequirementIds()) {
+				// plan the revocations
+				final List<Row> expiredRows = new ArrayList<Row>();
+				final List<List<SelectColumn>> headerHolder = new ArrayList<List<SelectColumn>>();
+				tableUtil.getExpiredAccess(ds, new RowHandler() {
+					public void handleRow(List<SelectColumn> headers, Row row) throws SynapseException {
+						if (headerHolder.isEmpty()) headerHolder.add(headers);
+						expiredRows.add(row);
+					}
+				});
+				if (expiredRows.isEmpty()) continue;
+				System.out.println("Revoking access to team "+approvalTeamId+" for "+expiredRows.size()+" users.");
+				for (int start=0; start<expiredRows.size(); start+=chunkSize) {
+					List<Row> chunk = expiredRows.subList(start, Math.min(start+chunkSize, expiredRows.size()));
+					failureCount += revokeAccess(ds, headerHolder.get(0), chunk);
+				}
+			}
+		}
+		if (failureCount>0) throw new RuntimeException("Failed to revoke access for "+failureCount+" user(s).");
+	}
+	
+	/*
+	 * Revokes access for the users in the given rows of the approvals table, records
+	 * the revocations in the table and notifies the users
+	 * 
+	 * @return the number of users for whom revocation failed
+	 */
+	private int revokeAccess(final DatasetSettings ds, List<SelectColumn> headers, List<Row> rows) throws Exception {
+		final String approvalTeamId = ds.getApplicationTeamId();
+		int userIdIndex = getColumnIndexForName(headers, USER_ID);
+		int dateRevokedIndex = getColumnIndexForName(headers, DATE_REVOKED);
+		int threadCount = getIntProperty(REVOCATION_THREAD_COUNT, 1);
+		
+		// revoke access approvals
+		BulkCallRunner<String> revocations = new BulkCallRunner<String>(threadCount);
+		for (Row row : rows) {
+			final String userId = row.getValues().get(userIdIndex);
+			for (final long requirementId : ds.getAccessRequirementIds()) {
+				revocations.add(Collections.singletonList(userId), new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
 						if (ENABLE_REVOCATION) {
 							synapseClient.revokeAccessApprovals(""+requirementId, userId);
 						} else {
 							System.out.println("Revoking access to requirement "+requirementId+" for user "+userId);
 						}
-					}
-					values.set(dateRevokedIndex, now.toString());
-					// remove from approval team
+						return null;
+					}});
+			}
+		}
+		Map<String, Exception> failures = revocations.run();
+		
+		// remove from approval team
+		BulkCallRunner<String> removals = new BulkCallRunner<String>(threadCount);
+		for (Row row : rows) {
+			final String userId = row.getValues().get(userIdIndex);
+			if (failures.containsKey(userId)) continue;
+			removals.add(Collections.singletonList(userId), new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
 					if (ENABLE_REVOCATION) {
 						synapseClient.removeTeamMember(approvalTeamId, userId);
 					} else {
 						System.out.println("Removing member "+userId+" from team "+approvalTeamId);
 					}
-				}
-				// update table
-				if (ENABLE_REVOCATION) {
-					if (!rowSet.getRows().isEmpty()) synapseClient.appendRowsToTable(rowSet, TABLE_UPDATE_TIMEOUT, rowSet.getTableId());
-				} else {
-					System.out.println("Updating table to show revocation for "+rowSet.getRows().size()+" users.");
-				}
-				if (ENABLE_REVOCATION) {
-					sendRevocationNotifications(usersToNotify, ds.getRevocationEmailSynapseId());
-				} else {
-					System.out.println("Sending notifications to "+rowSet.getRows().size()+" users.");
-				}
+					return null;
+				}});
+		}
+		failures.putAll(removals.run());
+		
+		for (String userId : failures.keySet()) {
+			System.out.println("Failed to revoke access to team "+approvalTeamId+" for user "+userId+":");
+			failures.get(userId).printStackTrace();
+		}
+		
+		// update table
+		Long now = System.currentTimeMillis();
+		RowSet rowSet = new RowSet();
+		rowSet.setTableId(getProperty("TABLE_ID"));
+		rowSet.setHeaders(headers);
+		rowSet.setRows(new ArrayList<Row>());
+		List<String> usersToNotify = new ArrayList<String>();
+		for (Row row : rows) {
+			String userId = row.getValues().get(userIdIndex);
+			if (failures.containsKey(userId)) continue;
+			row.getValues().set(dateRevokedIndex, now.toString());
+			rowSet.getRows().add(row);
+			usersToNotify.add(userId);
+		}
+		if (ENABLE_REVOCATION) {
+			if (!rowSet.getRows().isEmpty()) {
+				synapseClient.appendRowsToTable(rowSet, TABLE_UPDATE_TIMEOUT, rowSet.getTableId());
+				tableUtil.approvalTableUpdated();
 			}
+		} else {
+			System.out.println("Updating table to show revocation for "+rowSet.getRows().size()+" users.");
 		}
+		if (ENABLE_REVOCATION) {
+			sendRevocationNotifications(usersToNotify, ds.getRevocationEmailSynapseId());
+		} else {
+			System.out.println("Sending notifications to "+rowSet.getRows().size()+" users.");
+		}
+		return failures.size();
 	}
 	
 	private static final String REJECTION_SUBJECT = "error in token email";
@@ -491,12 +759,20 @@ public class NRGRSynapseGlue {
 	
 	/*
 	 * For any rejected emails, send an email *back* to the sender containing the reason.
+	 * The rejections are put on the outbound mail queue, to be sent in the background.
+	 * A failure to queue one rejection does not prevent the others being queued.
 	 */
 	private void sendRejectionsToMailSender(List<MimeMessageAndReason> mimeMessageAndReasons) {
 		if (mimeMessageAndReasons.isEmpty()) return;
+		Address notificationFrom;
 		try {
-			Address notificationFrom = new InternetAddress("noreply@sagebase.org");
-			for (MimeMessageAndReason mmr : mimeMessageAndReasons) {
+			notificationFrom = new InternetAddress("noreply@sagebase.org");
+		} catch (AddressException e) {
+			throw new RuntimeException(e);
+		}
+		Session session = Session.getInstance(new Properties());
+		for (MimeMessageAndReason mmr : mimeMessageAndReasons) {
+			try {
 				MimeMessage mimeMessage = mmr.getMimeMessage();
 				MimeMultipart content = new MimeMultipart();
 				// add a message to the sender, including the reason for the rejection
@@ -523,51 +799,114 @@ public class NRGRSynapseGlue {
 				} else {
 					throw new RuntimeException("Unexpcected type "+messageContent.getClass());
 				}
-				mailClient.sendMessage(notificationFrom, getMessageSender(mimeMessage), REJECTION_SUBJECT, content);
-				
+				MimeMessage rejection = new MimeMessage(session);
+				rejection.setFrom(notificationFrom);
+				rejection.setRecipients(Message.RecipientType.TO, getMessageSender(mimeMessage));
+				rejection.setSubject(REJECTION_SUBJECT);
+				rejection.setContent(content);
+				rejection.saveChanges();
+				outboundMailQueue.enqueue(rejection);
 				
 				try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
 					content.writeTo(baos);
-					logger.info("Sent this message back to token sender:\n"+baos);
+					logger.info("Queued this message back to token sender:\n"+baos);
 				}
 				
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-		} catch (Exception e) {
-			throw new RuntimeException(e);
 		}
 	}
 
-	private void createAccessApprovals(Collection<TokenContent> usersToApprove) throws SynapseException {
+	private static final String APPROVAL_THREAD_COUNT = "APPROVAL_THREAD_COUNT";
+	
+	/*
+	 * The approvals are created on a pool of APPROVAL_THREAD_COUNT threads, within the Synapse
+	 * client's shared rate limit.  The default of 1 creates them one after another; more than 1
+	 * is needed for them to overlap.  Each (user, access requirement)
+	 * pair is approved once, even if it appears in several tokens.
+	 * 
+	 * @return the tokens for which some approval could not be created, with the reason
+	 */
+	private Map<TokenContent, Exception> createAccessApprovals(Collection<TokenContent> usersToApprove) throws InterruptedException {
+		Map<String, List<TokenContent>> tokensForApproval = new LinkedHashMap<String, List<TokenContent>>();
 		for (TokenContent tc: usersToApprove) {
-			long userId = tc.getUserId();
 			for (Long accessRequirementId : tc.getAccessRequirementIds()) {
-				AccessApproval actAccessApproval = new AccessApproval();
-				actAccessApproval.setAccessorId(""+userId);
-				actAccessApproval.setState(ApprovalState.APPROVED);
-				actAccessApproval.setRequirementId(accessRequirementId);
-				actAccessApproval.setRequirementVersion(0L);
-				synapseClient.createAccessApproval(actAccessApproval);
+				String key = tc.getUserId()+"|"+accessRequirementId;
+				List<TokenContent> tokens = tokensForApproval.get(key);
+				if (tokens==null) {
+					tokens = new ArrayList<TokenContent>();
+					tokensForApproval.put(key, tokens);
+				}
+				tokens.add(tc);
 			}
 		}
+		BulkCallRunner<TokenContent> runner = new BulkCallRunner<TokenContent>(
+				getIntProperty(APPROVAL_THREAD_COUNT, 1));
+		for (Map.Entry<String, List<TokenContent>> entry : tokensForApproval.entrySet()) {
+			String[] userAndRequirement = entry.getKey().split("\\|");
+			final String userId = userAndRequirement[0];
+			final Long accessRequirementId = Long.parseLong(userAndRequirement[1]);
+			runner.add(entry.getValue(), new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					AccessApproval actAccessApproval = new AccessApproval();
+					actAccessApproval.setAccessorId(userId);
+					actAccessApproval.setState(ApprovalState.APPROVED);
+					actAccessApproval.setRequirementId(accessRequirementId);
+					actAccessApproval.setRequirementVersion(0L);
+					synapseClient.createAccessApproval(actAccessApproval);
+					return null;
+				}});
+		}
+		return runner.run();
 	}
 
-	private void acceptTeamMembershipRequests(Collection<TokenContent> usersToApprove) throws SynapseException {
+	/*
+	 * The users are added to their teams on the same kind of pool as the access approvals
+	 * are created (see createAccessApprovals).
+	 * 
+	 * @return the tokens for which the user could not be added to the team, with the reason
+	 */
+	private Map<TokenContent, Exception> acceptTeamMembershipRequests(Collection<TokenContent> usersToApprove) throws InterruptedException {
+		BulkCallRunner<TokenContent> runner = new BulkCallRunner<TokenContent>(
+				getIntProperty(APPROVAL_THREAD_COUNT, 1));
+		// several tokens for the same user and team need just one call
+		Map<String, List<TokenContent>> tokensForMembership = new LinkedHashMap<String, List<TokenContent>>();
 		for (TokenContent tc : usersToApprove) {
-			String teamId = tc.getApplicationTeamId();
-			long userId = tc.getUserId();
-			try {
-				synapseClient.addTeamMember(teamId, ""+userId, 
-					"https://www.synapse.org/#!Team:", null);
-			} catch (SynapseException e) {
-				throw new RuntimeException("Team Id: "+teamId+" userId: "+userId, e);
+			String key = tc.getUserId()+"|"+tc.getApplicationTeamId();
+			List<TokenContent> tokens = tokensForMembership.get(key);
+			if (tokens==null) {
+				tokens = new ArrayList<TokenContent>();
+				tokensForMembership.put(key, tokens);
 			}
+			tokens.add(tc);
+		}
+		for (List<TokenContent> tokens : tokensForMembership.values()) {
+			final String teamId = tokens.get(0).getApplicationTeamId();
+			final long userId = tokens.get(0).getUserId();
+			runner.add(tokens, new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						synapseClient.addTeamMember(teamId, ""+userId, 
+							"https://www.synapse.org/#!Team:", null);
+					} catch (SynapseException e) {
+						throw new RuntimeException("Team Id: "+teamId+" userId: "+userId, e);
+					}
+					return null;
+				}});
 		}
+		return runner.run();
 	}
 
 	public void sendApproveNotifications(Collection<TokenContent> usersToApprove, Map<String,DatasetSettings> settingsMap) throws IOException {
+		List<String> userIds = new ArrayList<String>();
+		for (TokenContent tc : usersToApprove) userIds.add(""+tc.getUserId());
+		userProfileCache.prefetch(userIds);
 		for (TokenContent tc : usersToApprove) {
 			try {
-				UserProfile userProfile = synapseClient.getUserProfile(""+tc.getUserId());
+				UserProfile userProfile = userProfileCache.getUserProfile(""+tc.getUserId());
 				DatasetSettings settings = settingsMap.get(tc.getApplicationTeamId());
 				MessageToUser message = new MessageToUser();
 				message.setSubject(settings.getDataDescriptor()+" Data Access Approval");
@@ -587,9 +926,10 @@ public class NRGRSynapseGlue {
 	
 	public void sendRevocationNotifications(Collection<String> userIds, String revocationTemplateId) throws IOException {
 		if (revocationTemplateId==null) throw new IllegalArgumentException("No email template.");
+		userProfileCache.prefetch(userIds);
 		for (String userId : userIds) {
 			try {
-				UserProfile userProfile = synapseClient.getUserProfile(userId);
+				UserProfile userProfile = userProfileCache.getUserProfile(userId);
 				MessageToUser message = new MessageToUser();
 				message.setSubject("NRGR Data Access Revocation");
 				Set<String> recipients = new HashSet<String>(Collections.singleton(userId));
@@ -0,0 +1,191 @@
+package org.sagebionetworks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * A file-backed queue of outgoing mail, drained by a background worker.
+ *
+ * Each message is written to its own file in the queue directory, named so that
+ * the files sort in the order they are due to be sent:
+ *
+ * <time of next attempt>_<attempts so far>_<unique ID>.eml
+ *
+ * The worker sends all the messages which are due, one after another over the
+ * mail client's pooled connection.  A message which fails is renamed to be retried
+ * after an exponentially increasing delay, and after maxAttempts it is moved to
+ * the 'dead' subdirectory.  Messages still in the queue when the application exits
+ * are sent on the next run, provided the same directory is used.
+ */
+public class OutboundMailQueue {
+	private static final String SUFFIX = ".eml";
+	private static final String DEAD_LETTER_DIRECTORY = "dead";
+	private static final long INITIAL_RETRY_DELAY_MILLIS = 60*1000L;
+	private static final long POLL_INTERVAL_MILLIS = 10*1000L;
+
+	private File directory;
+	private IMAPClient mailClient;
+	private int maxAttempts;
+	private Session session = Session.getInstance(new Properties());
+
+	private Thread worker = null;
+	private boolean stopping = false;
+	// messages which failed and then could not be renamed, so must not be sent again by
+	// this process: they would otherwise look due on every drain
+	private Set<String> unmovable = Collections.synchronizedSet(new HashSet<String>());
+
+	/*
+	 * @param directory where to keep the queue.  Use the same directory from one run to the
+	 * next so that messages awaiting retry are not lost.
+	 */
+	public OutboundMailQueue(File directory, IMAPClient mailClient, int maxAttempts) throws IOException {
+		if (!directory.exists() && !directory.mkdirs()) throw new IOException("Cannot create "+directory.getAbsolutePath());
+		this.directory=directory;
+		this.mailClient=mailClient;
+		this.maxAttempts=maxAttempts;
+	}
+
+	/*
+	 * Writes the message to the queue and returns.  The message is sent by the
+	 * worker, which is started if it is not already running.
+	 */
+	public void enqueue(MimeMessage message) throws IOException, MessagingException {
+		String name = queueFileName(currentTimeMillis(), 0, UUID.randomUUID().toString());
+		// write to a temporary file then rename, so the worker never sees a partial message
+		File temp = new File(directory, name+".tmp");
+		OutputStream os = new FileOutputStream(temp);
+		try {
+			message.writeTo(os);
+		} finally {
+			os.close();
+		}
+		if (!temp.renameTo(new File(directory, name))) throw new IOException("Cannot rename "+temp.getAbsolutePath());
+		start();
+	}
+
+	/*
+	 * Starts the worker, if it is not already running, so that messages left in the
+	 * queue by earlier runs are sent without waiting for a new message to be queued.
+	 */
+	public synchronized void start() {
+		if (worker==null && !stopping) {
+			worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}}, "outbound-mail");
+			worker.setDaemon(true);
+			worker.start();
+		}
+		notifyAll();
+	}
+
+	private void work() {
+		while (true) {
+			drain();
+			synchronized (this) {
+				// once stopping, the drain above has sent whatever arrived while we waited
+				if (stopping) return;
+				try {
+					wait(POLL_INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Sends the messages which are due
+	 */
+	public void drain() {
+		String[] names = directory.list();
+		if (names==null) return;
+		Arrays.sort(names);
+		long now = currentTimeMillis();
+		for (String name : names) {
+			if (!name.endsWith(SUFFIX) || unmovable.contains(name)) continue;
+			String[] parts = name.substring(0, name.length()-SUFFIX.length()).split("_");
+			long nextAttempt = Long.parseLong(parts[0]);
+			if (nextAttempt>now) break; // the rest are later still
+			int attempts = Integer.parseInt(parts[1]);
+			File file = new File(directory, name);
+			try {
+				InputStream is = new FileInputStream(file);
+				try {
+					mailClient.sendMessage(new MimeMessage(session, is));
+				} finally {
+					is.close();
+				}
+				if (!file.delete()) System.out.println("Failed to remove sent message "+file.getAbsolutePath());
+			} catch (Exception e) {
+				attempts++;
+				if (attempts>=maxAttempts) {
+					System.out.println("Giving up on sending "+name+" after "+attempts+" attempts:\n\t"+e.getMessage());
+					File deadLetters = new File(directory, DEAD_LETTER_DIRECTORY);
+					deadLetters.mkdirs();
+					rename(file, new File(deadLetters, name));
+				} else {
+					long delay = INITIAL_RETRY_DELAY_MILLIS<<(attempts-1);
+					System.out.println("Failed to send "+name+".  Will try again in "+delay/1000L+" sec:\n\t"+e.getMessage());
+					rename(file, new File(directory, queueFileName(now+delay, attempts, parts[2])));
+				}
+			}
+		}
+	}
+
+	private void rename(File file, File to) {
+		if (!file.renameTo(to)) {
+			System.out.println("Cannot rename "+file.getAbsolutePath()+" to "+to.getAbsolutePath()+
+					".  It will not be sent again until the next run.");
+			unmovable.add(file.getName());
+		}
+	}
+
+	private static String queueFileName(long nextAttempt, int attempts, String id) {
+		return String.format("%013d_%d_%s%s", nextAttempt, attempts, id, SUFFIX);
+	}
+
+	/*
+	 * Stops the worker once it has sent the messages which are due, waiting at most
+	 * the given time (not at all if it is 0).  If the worker was never started the messages
+	 * which are due are sent here.  Messages awaiting retry are left in the queue.
+	 */
+	public void shutdown(long timeoutMillis) throws InterruptedException {
+		Thread w;
+		synchronized (this) {
+			stopping = true;
+			notifyAll();
+			w = worker;
+		}
+		if (w==null) {
+			drain();
+		} else if (timeoutMillis>0) {
+			// (join(0) would wait forever)
+			w.join(timeoutMillis);
+		}
+		String[] remaining = directory.list();
+		int count = 0;
+		if (remaining!=null) for (String name : remaining) if (name.endsWith(SUFFIX)) count++;
+		if (count>0) System.out.println(count+" outbound message(s) remain queued in "+directory.getAbsolutePath());
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+}
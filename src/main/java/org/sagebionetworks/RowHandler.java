@@ -0,0 +1,14 @@
+package org.sagebionetworks;
+
+import java.util.List;
+
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.table.Row;
+import org.sagebionetworks.repo.model.table.SelectColumn;
+
+/*
+ * Receives the rows of a table query one at a time, as each page of results arrives.
+ */
+public interface RowHandler {
+	void handleRow(List<SelectColumn> headers, Row row) throws SynapseException;
+}
@@ -0,0 +1,148 @@
+package org.sagebionetworks;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/*
+ * Keeps authenticated SMTP connections open so that a run of messages can be
+ * sent without a TLS and AUTH handshake for each one.
+ *
+ * A connection which has been idle a while is checked (with a NOOP) before reuse, and
+ * one which is older than MAX_CONNECTION_AGE_MILLIS is replaced, since the server
+ * drops connections whose OAuth authentication has expired.  If sending over a
+ * pooled connection fails because the connection itself has failed, the connection
+ * is discarded and the message is sent once more over a new one.  Any other failure
+ * (e.g. the server rejecting a recipient) is not retried, since the server may have
+ * accepted the message for some recipients or will reject it again.
+ */
+public abstract class SMTPTransportPool {
+	// reuse a connection without checking it if it was used this recently
+	private static final long IDLE_CHECK_MILLIS = 30*1000L;
+	// replace connections before the access token they authenticated with expires
+	private static final long MAX_CONNECTION_AGE_MILLIS = 45*60*1000L;
+
+	private static class PooledTransport {
+		SMTPTransport transport;
+		long createdAt;
+		long lastUsed;
+		boolean reused;
+	}
+
+	private int maxIdle;
+	private Deque<PooledTransport> idle = new ArrayDeque<PooledTransport>();
+
+	/*
+	 * @param maxIdle the most connections to keep open when not in use
+	 */
+	public SMTPTransportPool(int maxIdle) {
+		if (maxIdle<1) throw new IllegalArgumentException("maxIdle must be at least 1 but was "+maxIdle);
+		this.maxIdle=maxIdle;
+	}
+
+	/*
+	 * @return a new, connected and authenticated transport
+	 */
+	protected abstract SMTPTransport createTransport() throws Exception;
+
+	public void sendMessage(Message message, Address[] to) throws Exception {
+		PooledTransport pooled = borrow();
+		try {
+			pooled.transport.sendMessage(message, to);
+		} catch (MessagingException e) {
+			if (!isConnectionFailure(pooled, e)) {
+				release(pooled);
+				throw e;
+			}
+			close(pooled);
+			if (!pooled.reused) throw e; // a new connection failed, so don't retry
+			System.out.println("Failed to send over pooled SMTP connection.  Will reconnect and try again:\n\t"+e.getMessage());
+			pooled = create();
+			try {
+				pooled.transport.sendMessage(message, to);
+			} catch (MessagingException e2) {
+				close(pooled);
+				throw e2;
+			}
+		}
+		release(pooled);
+	}
+
+	/*
+	 * @return true if the exception shows the connection has failed, rather than
+	 * the server having declined the message
+	 */
+	private static boolean isConnectionFailure(PooledTransport pooled, MessagingException e) {
+		if (e instanceof SendFailedException) return false;
+		return !pooled.transport.isConnected() || e.getNextException() instanceof IOException;
+	}
+
+	private PooledTransport borrow() throws Exception {
+		long now = currentTimeMillis();
+		while (true) {
+			PooledTransport pooled;
+			synchronized (this) {
+				pooled = idle.pollFirst();
+			}
+			if (pooled==null) return create();
+			if (now-pooled.createdAt>=MAX_CONNECTION_AGE_MILLIS ||
+					(now-pooled.lastUsed>=IDLE_CHECK_MILLIS && !pooled.transport.isConnected())) {
+				close(pooled);
+				continue;
+			}
+			pooled.reused = true;
+			return pooled;
+		}
+	}
+
+	private PooledTransport create() throws Exception {
+		PooledTransport pooled = new PooledTransport();
+		pooled.transport = createTransport();
+		pooled.createdAt = currentTimeMillis();
+		pooled.lastUsed = pooled.createdAt;
+		return pooled;
+	}
+
+	private void release(PooledTransport pooled) {
+		pooled.lastUsed = currentTimeMillis();
+		synchronized (this) {
+			if (idle.size()<maxIdle) {
+				// most recently used first, so the others can age out
+				idle.addFirst(pooled);
+				return;
+			}
+		}
+		close(pooled);
+	}
+
+	private static void close(PooledTransport pooled) {
+		try {
+			pooled.transport.close();
+		} catch (MessagingException e) {
+			// the connection is being discarded anyway
+		}
+	}
+
+	public void close() {
+		while (true) {
+			PooledTransport pooled;
+			synchronized (this) {
+				pooled = idle.pollFirst();
+			}
+			if (pooled==null) return;
+			close(pooled);
+		}
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+}
@@ -1,8 +1,14 @@
 package org.sagebionetworks;
 
+import static org.sagebionetworks.Util.getIntProperty;
+
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.apache.http.entity.ContentType;
 import org.sagebionetworks.client.SynapseClient;
@@ -12,9 +18,16 @@ import org.sagebionetworks.repo.model.FileEntity;
 import org.sagebionetworks.repo.model.file.CloudProviderFileHandleInterface;
 
 /*
- * This message handler turns the message into an Evaluation Submission
+ * This message handler turns the message into an Evaluation Submission.
+ * 
+ * A batch of messages is handled on a pool of MAIL_UPLOAD_THREAD_COUNT threads.
+ * With more than one thread, one message can be uploading while another's entity
+ * and submission are being created.  The default of 1 handles the messages one
+ * after another, with no overlap.
  */
-public class SubmissionMessageHandler implements MessageHandler {
+public class SubmissionMessageHandler implements BatchMessageHandler {
+	private static final String MAIL_UPLOAD_THREAD_COUNT = "MAIL_UPLOAD_THREAD_COUNT";
+	
 	private SynapseClient synapseClient;
 	private String messageParentId;
 	private String evaluationId; 
@@ -25,6 +38,30 @@ public class SubmissionMessageHandler implements MessageHandler {
 		this.evaluationId=evaluationId;
 	}
 
+	@Override
+	public List<Exception> handleMessageContents(List<byte[]> messageContents) throws InterruptedException {
+		BoundedExecutor executor = new BoundedExecutor(getIntProperty(MAIL_UPLOAD_THREAD_COUNT, 1));
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final byte[] messageContent : messageContents) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					handleMessageContent(messageContent);
+					return null;
+				}});
+		}
+		List<Exception> result = new ArrayList<Exception>();
+		for (Future<Void> future : executor.invokeAll(tasks)) {
+			try {
+				BoundedExecutor.getResult(future);
+				result.add(null);
+			} catch (Exception e) {
+				result.add(e);
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public void handleMessageContent(byte[] messageContent) throws IOException {
 		try {
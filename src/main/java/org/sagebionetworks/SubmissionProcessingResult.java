@@ -1,8 +1,11 @@
 package org.sagebionetworks;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.sagebionetworks.evaluation.model.SubmissionStatus;
@@ -11,11 +14,15 @@ public class SubmissionProcessingResult {
 	private List<SubmissionStatus> processedSubmissions;
 	private List<MimeMessageAndReason> messagesToSender;
 	private Set<TokenContent> validTokens;
+	// the valid tokens found in each submission, keyed by identity since a status
+	// is modified as its submission is processed
+	private Map<SubmissionStatus, Set<TokenContent>> validTokensBySubmission;
 
 	public SubmissionProcessingResult() {
 		processedSubmissions = new ArrayList<SubmissionStatus>();
 		messagesToSender = new ArrayList<MimeMessageAndReason>();
 		validTokens = new HashSet<TokenContent>();
+		validTokensBySubmission = new IdentityHashMap<SubmissionStatus, Set<TokenContent>>();
 	}
 
 	public List<SubmissionStatus> getProcessedSubmissions() {
@@ -50,8 +57,29 @@ public class SubmissionProcessingResult {
 		this.validTokens = validTokens;
 	}
 	
-	public void addValidToken(TokenContent validToken) {
+	public void addValidToken(SubmissionStatus submissionStatus, TokenContent validToken) {
 		this.validTokens.add(validToken);
+		Set<TokenContent> submissionTokens = validTokensBySubmission.get(submissionStatus);
+		if (submissionTokens==null) {
+			submissionTokens = new HashSet<TokenContent>();
+			validTokensBySubmission.put(submissionStatus, submissionTokens);
+		}
+		submissionTokens.add(validToken);
+	}
+	
+	/*
+	 * @return the valid tokens found in the submission having the given status
+	 */
+	public Set<TokenContent> getValidTokens(SubmissionStatus submissionStatus) {
+		Set<TokenContent> submissionTokens = validTokensBySubmission.get(submissionStatus);
+		return submissionTokens==null ? Collections.<TokenContent>emptySet() : submissionTokens;
+	}
+	
+	public void addAll(SubmissionProcessingResult toAdd) {
+		this.processedSubmissions.addAll(toAdd.getProcessedSubmissions());
+		this.messagesToSender.addAll(toAdd.getMessagesToSender());
+		this.validTokens.addAll(toAdd.getValidTokens());
+		this.validTokensBySubmission.putAll(toAdd.validTokensBySubmission);
 	}
 
 }
@@ -0,0 +1,142 @@
+package org.sagebionetworks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
+
+/*
+ * Per-method call counts, latencies, retries and errors for calls made through the
+ * Synapse client proxy, shared by all the clients in the JVM.  Methods are identified
+ * by name and parameter types, e.g. getTeam(String), so overloads are counted apart.
+ *
+ * The latency of a call includes its retries and any time spent waiting on the rate
+ * limiter, i.e. it is the time the caller waited.  A call which failed after all its
+ * retries is counted once as an error, under the type of the exception it threw, except
+ * that an asynchronous job's result not yet being ready is routine and so is counted
+ * separately.
+ */
+public class SynapseCallMetrics {
+	private static final long NANOS_PER_MICRO = 1000L;
+
+	static class MethodMetrics {
+		String method;
+		AtomicLong calls = new AtomicLong();
+		AtomicLong retries = new AtomicLong();
+		AtomicLong notReady = new AtomicLong();
+		AtomicLong totalMicros = new AtomicLong();
+		LatencyHistogram latencyMicros = new LatencyHistogram();
+		ConcurrentMap<String,AtomicLong> errors = new ConcurrentHashMap<String,AtomicLong>();
+
+		MethodMetrics(String method) {
+			this.method=method;
+		}
+	}
+
+	// replaced, rather than cleared, on reset, so that a call recorded while a summary is
+	// being made is counted in the next summary rather than cleared unseen
+	private static volatile ConcurrentMap<String,MethodMetrics> metrics = new ConcurrentHashMap<String,MethodMetrics>();
+
+	private static MethodMetrics getOrCreate(String method) {
+		ConcurrentMap<String,MethodMetrics> current = metrics;
+		MethodMetrics mm = current.get(method);
+		if (mm==null) {
+			MethodMetrics existing = current.putIfAbsent(method, mm = new MethodMetrics(method));
+			if (existing!=null) mm = existing;
+		}
+		return mm;
+	}
+
+	/*
+	 * Counts one retry of a call to the given method
+	 */
+	public static void recordRetry(String method) {
+		getOrCreate(method).retries.incrementAndGet();
+	}
+
+	/*
+	 * @param method the method called, as its name and parameter types
+	 * @param elapsedNanos how long the call took, including retries
+	 * @param error what the call finally threw, or null if it succeeded
+	 */
+	public static void record(String method, long elapsedNanos, Throwable error) {
+		MethodMetrics mm = getOrCreate(method);
+		long micros = elapsedNanos/NANOS_PER_MICRO;
+		mm.calls.incrementAndGet();
+		mm.totalMicros.addAndGet(micros);
+		mm.latencyMicros.record(micros);
+		if (error instanceof SynapseResultNotReadyException) {
+			mm.notReady.incrementAndGet();
+		} else if (error!=null) {
+			String errorType = error.getClass().getSimpleName();
+			AtomicLong count = mm.errors.get(errorType);
+			if (count==null) {
+				AtomicLong existing = mm.errors.putIfAbsent(errorType, count = new AtomicLong());
+				if (existing!=null) count = existing;
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	static MethodMetrics getMethodMetrics(String method) {
+		return metrics.get(method);
+	}
+
+	public static void reset() {
+		metrics = new ConcurrentHashMap<String,MethodMetrics>();
+	}
+
+	/*
+	 * @return a table of the metrics collected so far, the methods which took the most time
+	 * first, or an empty string if no calls were made.
+	 */
+	public static String summary() {
+		return summary(metrics);
+	}
+
+	private static String summary(Map<String,MethodMetrics> metrics) {
+		List<MethodMetrics> sorted = new ArrayList<MethodMetrics>(metrics.values());
+		if (sorted.isEmpty()) return "";
+		Collections.sort(sorted, new Comparator<MethodMetrics>() {
+			@Override
+			public int compare(MethodMetrics o1, MethodMetrics o2) {
+				long t1 = o1.totalMicros.get();
+				long t2 = o2.totalMicros.get();
+				return t1<t2 ? 1 : (t1>t2 ? -1 : o1.method.compareTo(o2.method));
+			}});
+		StringBuilder sb = new StringBuilder("Synapse client calls (latencies in ms):\n");
+		sb.append(String.format("%-60s %7s %7s %9s %10s %9s %9s %9s %9s  %s\n",
+				"method", "calls", "retries", "not ready", "total", "p50", "p90", "p99", "max", "errors"));
+		for (MethodMetrics mm : sorted) {
+			LatencyHistogram h = mm.latencyMicros;
+			sb.append(String.format("%-60s %7d %7d %9d %10.1f %9.1f %9.1f %9.1f %9.1f  %s\n",
+					mm.method, mm.calls.get(), mm.retries.get(), mm.notReady.get(), millis(mm.totalMicros.get()),
+					millis(h.getValueAtPercentile(50)), millis(h.getValueAtPercentile(90)),
+					millis(h.getValueAtPercentile(99)), millis(h.getMax()),
+					// sorted, so the output is stable
+					mm.errors.isEmpty() ? "" : new TreeMap<String,AtomicLong>(mm.errors)));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Returns the summary and starts collecting afresh, e.g. for the next request
+	 * handled by a reused Lambda container.
+	 */
+	public static String summarizeAndReset() {
+		ConcurrentMap<String,MethodMetrics> previous = metrics;
+		reset();
+		return summary(previous);
+	}
+
+	private static double millis(long micros) {
+		return micros/1000.0;
+	}
+}
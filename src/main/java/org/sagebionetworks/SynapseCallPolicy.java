@@ -0,0 +1,89 @@
+package org.sagebionetworks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * How the Synapse client proxy treats a call to each SynapseClient method.
+ *
+ * Every method this application calls is listed explicitly (see SynapseClientFactoryTest
+ * when adding a call).  Any other method is taken
+ * to be IDEMPOTENT if its name says it only reads (get..., list..., etc.), and otherwise
+ * NOT_IDEMPOTENT, so that it is not repeated unless that is known to be safe.
+ */
+public enum SynapseCallPolicy {
+	// no request is made (e.g. client configuration), so the call is passed straight through
+	LOCAL,
+	// repeating the request has no further effect, so it is retried on any server error
+	// other than those which will not go away by themselves (e.g. 404)
+	IDEMPOTENT,
+	// repeating the request could repeat its effect (e.g. send a second message) so it is
+	// retried only if the server declined it as too busy (429 or 503) and so did not carry it out
+	NOT_IDEMPOTENT;
+
+	private static final String[] READ_ONLY_PREFIXES = {"get", "list", "query", "download", "is"};
+
+	private static final Map<String,SynapseCallPolicy> POLICIES = new HashMap<String,SynapseCallPolicy>();
+
+	static {
+		// java.lang.Object
+		POLICIES.put("equals", LOCAL);
+		POLICIES.put("hashCode", LOCAL);
+		POLICIES.put("toString", LOCAL);
+		// client configuration
+		POLICIES.put("setBearerAuthorizationToken", LOCAL);
+		POLICIES.put("setAuthEndpoint", LOCAL);
+		POLICIES.put("setRepositoryEndpoint", LOCAL);
+		POLICIES.put("setFileEndpoint", LOCAL);
+
+		// a repeated login just issues another session
+		POLICIES.put("login", IDEMPOTENT);
+		POLICIES.put("getMyProfile", IDEMPOTENT);
+		POLICIES.put("getUserProfile", IDEMPOTENT);
+		POLICIES.put("listUserProfiles", IDEMPOTENT);
+		POLICIES.put("getEntityById", IDEMPOTENT);
+		POLICIES.put("getColumnModelsForTableEntity", IDEMPOTENT);
+		POLICIES.put("getOpenMembershipRequests", IDEMPOTENT);
+		POLICIES.put("getTeamMembershipStatus", IDEMPOTENT);
+		POLICIES.put("getAllSubmissionBundlesByStatus", IDEMPOTENT);
+		POLICIES.put("getFileEntityTemporaryUrlForVersion", IDEMPOTENT);
+		POLICIES.put("getFileTemporaryUrlForSubmissionFileHandle", IDEMPOTENT);
+		POLICIES.put("queryTableEntityBundleAsyncGet", IDEMPOTENT);
+		// starting a second query job is harmless
+		POLICIES.put("queryTableEntityBundleAsyncStart", IDEMPOTENT);
+		// adding an existing member or removing a former one changes nothing
+		POLICIES.put("addTeamMember", IDEMPOTENT);
+		POLICIES.put("removeTeamMember", IDEMPOTENT);
+		// revoking approvals already revoked changes nothing
+		POLICIES.put("revokeAccessApprovals", IDEMPOTENT);
+
+		POLICIES.put("createAccessApproval", NOT_IDEMPOTENT);
+		POLICIES.put("createEntity", NOT_IDEMPOTENT);
+		POLICIES.put("createIndividualSubmission", NOT_IDEMPOTENT);
+		POLICIES.put("appendRowsToTable", NOT_IDEMPOTENT);
+		// a repeat after a failure partway through would leave the first attempt's file handle
+		// orphaned, and would find the caller's input stream already read, so only a request
+		// declined as too busy before the upload began is safe to repeat
+		POLICIES.put("multipartUpload", NOT_IDEMPOTENT);
+		POLICIES.put("sendMessage", NOT_IDEMPOTENT);
+		POLICIES.put("sendStringMessage", NOT_IDEMPOTENT);
+		// protected by etags, so a repeat after an unseen success fails with a misleading conflict
+		POLICIES.put("updateSubmissionStatusBatch", NOT_IDEMPOTENT);
+	}
+
+	/*
+	 * @return true if the method's policy is given explicitly rather than by its name
+	 */
+	static boolean isListed(String methodName) {
+		return POLICIES.containsKey(methodName);
+	}
+
+	public static SynapseCallPolicy forMethod(String methodName) {
+		SynapseCallPolicy policy = POLICIES.get(methodName);
+		if (policy!=null) return policy;
+		for (String prefix : READ_ONLY_PREFIXES) {
+			if (methodName.startsWith(prefix)) return IDEMPOTENT;
+		}
+		return NOT_IDEMPOTENT;
+	}
+}
@@ -1,11 +1,17 @@
 package org.sagebionetworks;
 
+import static org.sagebionetworks.Util.getIntProperty;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.SynapseClientImpl;
@@ -44,28 +50,123 @@ public class SynapseClientFactory {
 			); // TODO need to catch and not retry 409 too
 	
 	private static final Integer[] NO_RETRY_STATUSES = new Integer[] {409};
+	
+	private static final ExponentialBackoffRunner IDEMPOTENT_RUNNER = new ExponentialBackoffRunner(
+			NO_RETRY_EXCEPTIONS, NO_RETRY_STATUSES, ExponentialBackoffRunner.DEFAULT_NUM_RETRY_ATTEMPTS);
+	private static final ExponentialBackoffRunner NOT_IDEMPOTENT_RUNNER = new ExponentialBackoffRunner(
+			NO_RETRY_EXCEPTIONS, NO_RETRY_STATUSES, ExponentialBackoffRunner.DEFAULT_NUM_RETRY_ATTEMPTS, true);
+	
+	// shared by all clients, so that concurrent callers draw on one budget
+	private static AdaptiveRateLimiter rateLimiter = null;
+	
+	private static synchronized AdaptiveRateLimiter getRateLimiter() {
+		if (rateLimiter==null) {
+			rateLimiter = new AdaptiveRateLimiter(
+					getIntProperty("SYNAPSE_INITIAL_REQUESTS_PER_SECOND", 10),
+					0.5,
+					getIntProperty("SYNAPSE_MAX_REQUESTS_PER_SECOND", 50),
+					getIntProperty("SYNAPSE_MAX_CONCURRENT_REQUESTS", 10));
+		}
+		return rateLimiter;
+	}
+	
+	/*
+	 * Dispatches calls to one SynapseClient method through a method handle, resolved
+	 * once, according to the method's SynapseCallPolicy.  Dispatchers are shared by all
+	 * clients, so nothing is looked up or allocated per call, beyond the argument array
+	 * the proxy itself creates.
+	 */
+	static class MethodDispatcher implements Invocation<Object> {
+		private String name;
+		// the method's name and parameter types, e.g. getTeam(String), so that the metrics
+		// for overloaded methods are kept apart
+		private String key;
+		private SynapseCallPolicy policy;
+		// takes the target and an array of the arguments
+		private MethodHandle handle;
+		private ExponentialBackoffRunner runner;
+		private AdaptiveRateLimiter limiter;
+
+		MethodDispatcher(Method method) throws IllegalAccessException {
+			this.name = method.getName();
+			this.key = metricsKey(method);
+			this.policy = SynapseCallPolicy.forMethod(name);
+			int parameterCount = method.getParameterTypes().length;
+			this.handle = MethodHandles.publicLookup().unreflect(method)
+					.asType(MethodType.genericMethodType(parameterCount+1))
+					.asSpreader(Object[].class, parameterCount);
+			this.runner = policy==SynapseCallPolicy.NOT_IDEMPOTENT ? NOT_IDEMPOTENT_RUNNER : IDEMPOTENT_RUNNER;
+			if (policy!=SynapseCallPolicy.LOCAL) this.limiter = getRateLimiter();
+		}
+
+		SynapseCallPolicy getPolicy() {
+			return policy;
+		}
+
+		String getKey() {
+			return key;
+		}
+
+		private static String metricsKey(Method method) {
+			StringBuilder sb = new StringBuilder(method.getName()).append('(');
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			for (int i=0; i<parameterTypes.length; i++) {
+				if (i>0) sb.append(',');
+				sb.append(parameterTypes[i].getSimpleName());
+			}
+			return sb.append(')').toString();
+		}
+
+		Object call(Object target, Object[] args) throws Throwable {
+			if (policy==SynapseCallPolicy.LOCAL) return (Object)handle.invokeExact(target, args);
+			long start = System.nanoTime();
+			Throwable error = null;
+			try {
+				return runner.execute(this, target, args);
+			} catch (Throwable t) {
+				error = t;
+				throw t;
+			} finally {
+				SynapseCallMetrics.record(key, System.nanoTime()-start, error);
+			}
+		}
+
+		@Override
+		public Object invoke(Object target, Object[] args, int attempt) throws Throwable {
+			if (attempt>0) SynapseCallMetrics.recordRetry(key);
+			// each attempt, including retries, waits its turn
+			limiter.acquire();
+			try {
+				Object result = (Object)handle.invokeExact(target, args);
+				limiter.onSuccess();
+				return result;
+			} catch (Throwable t) {
+				if (ExponentialBackoffRunner.isThrottled(t)) limiter.onThrottled();
+				throw t;
+			} finally {
+				limiter.release();
+			}
+		}
+	}
+
+	private static ConcurrentMap<Method,MethodDispatcher> dispatchers = new ConcurrentHashMap<Method,MethodDispatcher>();
+
+	static MethodDispatcher getDispatcher(Method method) throws IllegalAccessException {
+		MethodDispatcher dispatcher = dispatchers.get(method);
+		if (dispatcher==null) {
+			MethodDispatcher existing = dispatchers.putIfAbsent(method, dispatcher = new MethodDispatcher(method));
+			if (existing!=null) dispatcher = existing;
+		}
+		return dispatcher;
+	}
 
 	public static SynapseClient createSynapseClient() {
 		final SynapseClient synapseClientIntern = createSynapseClientIntern();
 
-		final ExponentialBackoffRunner exponentialBackoffRunner = new ExponentialBackoffRunner(
-				NO_RETRY_EXCEPTIONS, NO_RETRY_STATUSES, ExponentialBackoffRunner.DEFAULT_NUM_RETRY_ATTEMPTS);
-
 		InvocationHandler handler = new InvocationHandler() {
 			public Object invoke(final Object proxy, final Method method, final Object[] args)
 					throws Throwable {
-				return exponentialBackoffRunner.execute(new Executable<Object>() {
-					public Object execute() throws Throwable {
-						try {
-							Object result = method.invoke(synapseClientIntern, args);
-							return result;
-						} catch (IllegalAccessException  e) {
-							throw new RuntimeException(e);
-						} catch (InvocationTargetException e) {
-							if (e.getCause()==null) throw e; else throw e.getCause();
-						}
-					}
-				});
+				return getDispatcher(method).call(synapseClientIntern, args);
 			}
 		};
 
@@ -1,18 +1,20 @@
 package org.sagebionetworks;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseException;
-import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
 import org.sagebionetworks.repo.model.MembershipRequest;
 import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.sagebionetworks.repo.model.table.QueryResultBundle;
@@ -43,6 +45,13 @@ public class TableUtil {
 	
 	private String tableId;
 	private String configurationTableId;
+	
+	// optional local copy of the approvals table, used in place of querying it
+	private ApprovalTableReplica replica;
+	private boolean replicaLoaded = false;
+	private boolean replicaStale = true;
+	
+	private AsyncJobWaiter asyncJobWaiter = new AsyncJobWaiter();
 
 	public TableUtil(SynapseClient synapseClient, String tableId, String configurationTableId) {
 		this.synapseClient=synapseClient;
@@ -50,6 +59,68 @@ public class TableUtil {
 		this.configurationTableId=configurationTableId;
 	}
 	
+	public void setApprovalTableReplica(ApprovalTableReplica replica) {
+		this.replica=replica;
+	}
+	
+	/*
+	 * Marks the replica as out of date, to be called after this process appends to the
+	 * approvals table.  Changes made by other processes (e.g. approvals made via the Lambda
+	 * entry point) are picked up by the first sync of each run.
+	 */
+	public void approvalTableUpdated() {
+		if (replica==null) return;
+		synchronized (replica) {
+			replicaStale = true;
+		}
+	}
+	
+	/*
+	 * Brings the replica up to date, retrieving only the rows changed since the last sync.
+	 * This is done on first use and again after each of this process's own updates, so a
+	 * run makes one delta query per stage rather than one per lookup.
+	 * Must be called while synchronized on the replica.
+	 */
+	private void syncReplica() throws SynapseException, InterruptedException {
+		if (!replicaStale) return;
+		try {
+			if (!replicaLoaded) {
+				replica.load();
+				replicaLoaded = true;
+			}
+			String sql = "SELECT * FROM "+tableId;
+			if (replica.getMaxVersion()>=0) sql += " WHERE ROW_VERSION > "+replica.getMaxVersion();
+			Pair<List<SelectColumn>, RowSet> changes = executeQuery(sql, tableId);
+			if (!replica.merge(changes.getFirst(), changes.getSecond().getRows(), changes.getSecond().getEtag())) {
+				// the table's columns have changed, so start over
+				System.out.println("Approval table columns have changed.  Rebuilding replica.");
+				replica.clear();
+				changes = executeQuery("SELECT * FROM "+tableId, tableId);
+				replica.merge(changes.getFirst(), changes.getSecond().getRows(), changes.getSecond().getEtag());
+			}
+			if (!changes.getSecond().getRows().isEmpty()) replica.save();
+			replicaStale = false;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/*
+	 * Answers a lookup of the approvals table from the replica, returning the result in
+	 * the same form as a query would.
+	 */
+	private Pair<List<SelectColumn>, RowSet> queryReplica(Collection<String> userIds, String teamId, boolean notApprovedOnly) throws SynapseException, InterruptedException {
+		synchronized (replica) {
+			syncReplica();
+			RowSet rowSet = new RowSet();
+			rowSet.setHeaders(replica.getHeaders());
+			rowSet.setRows(replica.getRowsForUsers(userIds, teamId, notApprovedOnly));
+			rowSet.setEtag(replica.getEtag());
+			rowSet.setTableId(tableId);
+			return new Pair<List<SelectColumn>, RowSet>(replica.getHeaders(), rowSet);
+		}
+	}
+	
 	public static List<String> getSubnetsFromString(String s) {
 		if (StringUtils.isEmpty(s)) return Collections.EMPTY_LIST;
 		return Arrays.asList(s.split("[,;:]"));
@@ -59,55 +130,58 @@ public class TableUtil {
 	 * return a map whose key is signup team ID and value is the collection of settings for that team
 	 */
 	public  Map<String,DatasetSettings> getDatasetSettings() throws SynapseException, InterruptedException {
-		Pair<List<SelectColumn>, RowSet> queryResult = executeQuery(
-				"SELECT * FROM "+configurationTableId, configurationTableId, Integer.MAX_VALUE);
-		
-		Map<String,DatasetSettings> result = new HashMap<String,DatasetSettings>();
-
-		for (Row row : queryResult.getSecond().getRows()) {
-			DatasetSettings setting = new DatasetSettings();
-			assert row.getValues().size()==queryResult.getSecond().getHeaders().size();
-			for (int i=0; i<queryResult.getSecond().getHeaders().size(); i++) {
-				SelectColumn sc = queryResult.getSecond().getHeaders().get(i);
-				String value = row.getValues().get(i);
-				if (sc.getName().equals("applicationTeamId")) {
-					setting.setApplicationTeamId(value);
-				} else if (sc.getName().equals("accessRequirementIds")) {
-					String[] arIdStrings = value.split(",");
-					List<Long> arIds = new ArrayList<Long>();
-					for (String arIdString : arIdStrings) arIds.add(Long.parseLong(arIdString));
-					setting.setAccessRequirementIds(arIds);
-				} else if (sc.getName().equals("tokenLabel")) {
-					setting.setTokenLabel(value);
-				} else if (sc.getName().equals("dataDescriptor")) {
-					setting.setDataDescriptor(value);
-				} else if (sc.getName().equals("tokenEmailSynapseId")) {
-					setting.setTokenEmailSynapseId(value);
-				} else if (sc.getName().equals("approvalEmailSynapseId")) {
-					setting.setApprovalEmailSynapseId(value);
-				} else if (sc.getName().equals("revocationEmailSynapseId")) {
-					setting.setRevocationEmailSynapseId(value);
-				} else if (sc.getName().equals("tokenExpirationDays")) {
-					setting.setTokenExpirationTimeDays(Integer.parseInt(value));
-				} else if (sc.getName().equals("originatingIpSubnet")) {
-					List<String> subnets = getSubnetsFromString(value);
-					setting.setOriginatingIPsubnets(subnets);
-				} else if (sc.getName().equals("expiresAfterDays")) {
-					if (!StringUtils.isEmpty(value))
-						setting.setExpiresAfterDays(Integer.parseInt(value));
-				} else if (sc.getName().equals("approverSynapseIds")) {
-					String[] approverSynapseIds = value.split(",");
-					setting.setApproverSynapseIds(Arrays.asList(approverSynapseIds));
-				} else {
-					throw new RuntimeException("Unexpected column "+sc.getName());
-				}
+		final Map<String,DatasetSettings> result = new HashMap<String,DatasetSettings>();
+		executeQuery("SELECT * FROM "+configurationTableId, configurationTableId, new RowHandler() {
+			public void handleRow(List<SelectColumn> headers, Row row) {
+				DatasetSettings setting = getDatasetSettings(headers, row);
+				result.put(setting.getApplicationTeamId(), setting);
 			}
-			assert setting.getApplicationTeamId()!=null;
-			result.put(setting.getApplicationTeamId(), setting);
-		}
+		});
 		return result;
 	}
 	
+	private static DatasetSettings getDatasetSettings(List<SelectColumn> headers, Row row) {
+		DatasetSettings setting = new DatasetSettings();
+		assert row.getValues().size()==headers.size();
+		for (int i=0; i<headers.size(); i++) {
+			SelectColumn sc = headers.get(i);
+			String value = row.getValues().get(i);
+			if (sc.getName().equals("applicationTeamId")) {
+				setting.setApplicationTeamId(value);
+			} else if (sc.getName().equals("accessRequirementIds")) {
+				String[] arIdStrings = value.split(",");
+				List<Long> arIds = new ArrayList<Long>();
+				for (String arIdString : arIdStrings) arIds.add(Long.parseLong(arIdString));
+				setting.setAccessRequirementIds(arIds);
+			} else if (sc.getName().equals("tokenLabel")) {
+				setting.setTokenLabel(value);
+			} else if (sc.getName().equals("dataDescriptor")) {
+				setting.setDataDescriptor(value);
+			} else if (sc.getName().equals("tokenEmailSynapseId")) {
+				setting.setTokenEmailSynapseId(value);
+			} else if (sc.getName().equals("approvalEmailSynapseId")) {
+				setting.setApprovalEmailSynapseId(value);
+			} else if (sc.getName().equals("revocationEmailSynapseId")) {
+				setting.setRevocationEmailSynapseId(value);
+			} else if (sc.getName().equals("tokenExpirationDays")) {
+				setting.setTokenExpirationTimeDays(Integer.parseInt(value));
+			} else if (sc.getName().equals("originatingIpSubnet")) {
+				List<String> subnets = getSubnetsFromString(value);
+				setting.setOriginatingIPsubnets(subnets);
+			} else if (sc.getName().equals("expiresAfterDays")) {
+				if (!StringUtils.isEmpty(value))
+					setting.setExpiresAfterDays(Integer.parseInt(value));
+			} else if (sc.getName().equals("approverSynapseIds")) {
+				String[] approverSynapseIds = value.split(",");
+				setting.setApproverSynapseIds(Arrays.asList(approverSynapseIds));
+			} else {
+				throw new RuntimeException("Unexpected column "+sc.getName());
+			}
+		}
+		assert setting.getApplicationTeamId()!=null;
+		return setting;
+	}
+	
 	public List<MembershipRequest> getNewMembershipRequests(Collection<MembershipRequest> membershipRequests) throws SynapseException, InterruptedException {
 		if (membershipRequests.isEmpty()) return Collections.EMPTY_LIST;
 		StringBuilder sb = new StringBuilder("SELECT ");
@@ -116,7 +190,9 @@ public class TableUtil {
 		sb.append(" FROM "+tableId+" WHERE "+USER_ID+" IN (");
 		boolean firstTime = true;
 		String teamId = null;
+		List<String> userIds = new ArrayList<String>();
 		for (MembershipRequest mr : membershipRequests) {
+			userIds.add(mr.getUserId());
 			if (teamId==null) {
 				teamId = mr.getTeamId();
 			} else {
@@ -130,24 +206,23 @@ public class TableUtil {
 		sb.append(")");
 		sb.append(" AND \""+APPLICATION_TEAM_ID+"\"='"+teamId+"'");
 		String sql = sb.toString();
-		Pair<List<SelectColumn>, RowSet> queryResult = executeQuery(sql, tableId, Integer.MAX_VALUE);
+		Pair<List<SelectColumn>, RowSet> queryResult = replica==null ? executeQuery(sql, tableId) :
+			queryReplica(userIds, teamId, false);
 		int userIdIndex = getColumnIndexForName(queryResult.getFirst(), USER_ID);
 		int expirationIndex = getColumnIndexForName(queryResult.getFirst(), MEMBERSHIP_REQUEST_EXPIRATION_DATE);
 
-		// starting from a list of all membership requests, remove the ones that have already been processed
-		List<MembershipRequest> newMembershipRequests = new ArrayList<MembershipRequest>(membershipRequests);
+		// index the membership requests which have already been processed
+		Set<String> processed = new HashSet<String>();
+		for (Row row : queryResult.getSecond().getRows()) {
+			List<String> values = row.getValues();
+			processed.add(matchKey(values.get(userIdIndex), teamId, values.get(expirationIndex)));
+		}
+
+		// keep the membership requests that have not yet been processed
+		List<MembershipRequest> newMembershipRequests = new ArrayList<MembershipRequest>();
 		for (MembershipRequest mr : membershipRequests) {
-			String mrUserId = mr.getUserId();
-			Date mrExpiresOn = Util.cleanDate(mr.getExpiresOn());
-			for (Row row : queryResult.getSecond().getRows()) {
-				List<String> values = row.getValues();
-				String rowUserId = values.get(userIdIndex);
-				String rowExpiresOnString = values.get(expirationIndex);
-				Date rowExpiresOn = rowExpiresOnString==null ? null : new Date(Long.parseLong(rowExpiresOnString));
-				if (mrUserId.equals(rowUserId) && Util.datesEqualNoMillis(rowExpiresOn, mrExpiresOn)) {
-					newMembershipRequests.remove(mr);
-					break;
-				}
+			if (!processed.contains(matchKey(mr.getUserId(), teamId, Util.cleanDate(mr.getExpiresOn())))) {
+				newMembershipRequests.add(mr);
 			}
 		}
 		return newMembershipRequests;
@@ -166,7 +241,9 @@ public class TableUtil {
 		StringBuilder sb = new StringBuilder("SELECT * FROM ");
 		sb.append(tableId+" WHERE "+USER_ID+" IN (");
 		boolean firstTime = true;
+		List<String> userIds = new ArrayList<String>();
 		for (TokenContent tc : tcs) {
+			userIds.add(""+tc.getUserId());
 			if (firstTime) firstTime=false; else sb.append(",");
 			sb.append(tc.getUserId());
 		}
@@ -174,36 +251,40 @@ public class TableUtil {
 		sb.append(APPROVED_ON);
 		sb.append("\" IS NULL");
 		String sql = sb.toString();
-		Pair<List<SelectColumn>, RowSet> queryResult = executeQuery(sql, tableId, Integer.MAX_VALUE);
+		Pair<List<SelectColumn>, RowSet> queryResult = replica==null ? executeQuery(sql, tableId) :
+			queryReplica(userIds, null, true);
 		int userIdIndex = getColumnIndexForName(queryResult.getFirst(), USER_ID);
 		int teamIdIndex = getColumnIndexForName(queryResult.getFirst(), APPLICATION_TEAM_ID);
 		int expirationIndex = getColumnIndexForName(queryResult.getFirst(), MEMBERSHIP_REQUEST_EXPIRATION_DATE);
 		
+		// index the returned rows by user, team and expiration, preserving their order
+		Map<String,List<Row>> rowIndex = new HashMap<String,List<Row>>();
+		for (Row row : queryResult.getSecond().getRows()) {
+			List<String> values = row.getValues();
+			String key = matchKey(values.get(userIdIndex), values.get(teamIdIndex), values.get(expirationIndex));
+			List<Row> matchingRows = rowIndex.get(key);
+			if (matchingRows==null) {
+				matchingRows = new ArrayList<Row>();
+				rowIndex.put(key, matchingRows);
+			}
+			matchingRows.add(row);
+		}
+		
 		for (TokenContent tc : tcs) {
-			String userId = ""+tc.getUserId();
-			String teamId = tc.getApplicationTeamId();
-			Date mrExpiration = tc.getMembershipRequestExpiration();
-			for (Row row : queryResult.getSecond().getRows()) {
-				List<String> values = row.getValues();
-				String rowUser = values.get(userIdIndex);
-				String rowTeam = values.get(teamIdIndex);
-				String rowExpiration = values.get(expirationIndex);
-				boolean datesMatch = rowExpiration==null ? mrExpiration==null :
-					Util.datesEqualNoMillis(new Date(Long.parseLong(rowExpiration)), mrExpiration);
-				if (userId.equals(rowUser) && StringUtils.equals(teamId, rowTeam) && datesMatch) {
-					// found it!
-					
-					// make a new row and add it to the result that we return
-					// we copy the data from the query result to ensure that it's a
-					// mutable object
-					Row rowCopy = new Row();
-					rowCopy.setRowId(row.getRowId());
-					rowCopy.setVersionNumber(row.getVersionNumber());
-					rowCopy.setValues(new ArrayList<String>(values));
-					rows.add(rowCopy);
-					
-					result.addToken(tc);
-				}			
+			List<Row> matchingRows = rowIndex.get(matchKey(""+tc.getUserId(), 
+					tc.getApplicationTeamId(), tc.getMembershipRequestExpiration()));
+			if (matchingRows==null) continue;
+			for (Row row : matchingRows) {
+				// make a new row and add it to the result that we return
+				// we copy the data from the query result to ensure that it's a
+				// mutable object
+				Row rowCopy = new Row();
+				rowCopy.setRowId(row.getRowId());
+				rowCopy.setVersionNumber(row.getVersionNumber());
+				rowCopy.setValues(new ArrayList<String>(row.getValues()));
+				rows.add(rowCopy);
+				
+				result.addToken(tc);
 			}
 		}
 
@@ -213,12 +294,34 @@ public class TableUtil {
 		return result;
 	}
 	
+	/*
+	 * The key used to match table rows to membership requests or tokens:  Two match if they 
+	 * have the same user, team and expiration date, the latter compared to the second.
+	 */
+	private static String matchKey(String userId, String teamId, Date expiration) {
+		return userId+"|"+teamId+"|"+(expiration==null ? "" : ""+expiration.getTime()/1000L);
+	}
+	
+	private static String matchKey(String userId, String teamId, String expiration) {
+		return matchKey(userId, teamId, expiration==null ? null : new Date(Long.parseLong(expiration)));
+	}
+	
 	private static final long MILLIS_PER_DAY = 1000*3600*24;
 	
 	// query for users whose approval date is more than the given days prior to the present day
-	public Pair<List<SelectColumn>, RowSet> getExpiredAccess(DatasetSettings ds) throws Exception {
+	public void getExpiredAccess(DatasetSettings ds, RowHandler rowHandler) throws Exception {
 			if (ds.getExpiresAfterDays()==null) throw new IllegalArgumentException();
 			long expirationThreshold = System.currentTimeMillis() - ds.getExpiresAfterDays()*MILLIS_PER_DAY;
+			
+			if (replica!=null) {
+				Pair<List<SelectColumn>, List<Row>> expired;
+				synchronized (replica) {
+					syncReplica();
+					expired = replica.getExpiredAccess(ds.getApplicationTeamId(), expirationThreshold);
+				}
+				for (Row row : expired.getSecond()) rowHandler.handleRow(expired.getFirst(), row);
+				return;
+			}
 
 			StringBuilder sb = new StringBuilder("SELECT \""+USER_ID+"\",\""+DATE_REVOKED+"\" FROM ");
 			sb.append(tableId);
@@ -234,31 +337,78 @@ public class TableUtil {
 			sb.append(DATE_REVOKED);
 			sb.append("\" is null");
 			String sql = sb.toString();
-			return executeQuery(sql, tableId, Integer.MAX_VALUE);
+			executeQuery(sql, tableId, rowHandler);
 	}
 
 	/*
-	 * Executes a query for which the max number of returned rows is known (i.e. we retrieve in a single page)
+	 * Executes a query, collecting all the returned rows into a single RowSet.
+	 * Only use this for queries whose results are known to be small.
 	 */
-	private Pair<List<SelectColumn>, RowSet> executeQuery(String sql, String tableId, long queryLimit) throws SynapseException, InterruptedException {
-		String asyncJobToken = synapseClient.queryTableEntityBundleAsyncStart(sql, 0L, queryLimit, QUERY_PARTS_MASK, tableId);
-		QueryResultBundle qrb=null;
-		long backoff = 100L;
-		for (int i=0; i<100; i++) {
-			try {
-				qrb = synapseClient.queryTableEntityBundleAsyncGet(asyncJobToken, tableId);
-				break;
-			} catch (SynapseResultNotReadyException e) {
-				// keep waiting
-				Thread.sleep(backoff);
-				backoff *=2L;
+	private Pair<List<SelectColumn>, RowSet> executeQuery(String sql, String tableId) throws SynapseException, InterruptedException {
+		final List<Row> rows = new ArrayList<Row>();
+		Pair<List<SelectColumn>, String> headersAndEtag = executeQueryIntern(sql, tableId, new RowHandler() {
+			public void handleRow(List<SelectColumn> headers, Row row) {
+				rows.add(row);
 			}
+		});
+		// the headers come from the query, so they are known even if no rows are returned
+		List<SelectColumn> selectColumns = headersAndEtag.getFirst();
+		RowSet rowSet = new RowSet();
+		rowSet.setEtag(headersAndEtag.getSecond());
+		rowSet.setHeaders(selectColumns);
+		rowSet.setRows(rows);
+		rowSet.setTableId(tableId);
+		return new Pair<List<SelectColumn>, RowSet>(selectColumns, rowSet);
+	}
+
+	/*
+	 * Executes a query, passing the results to the given handler a page at a time,
+	 * so that the full result set is never held in memory.  The first page tells us
+	 * the total row count and the page size the server allows; subsequent pages are
+	 * requested by offset until the count is reached.  Unless the query says otherwise
+	 * the rows are ordered by ROW_ID, so that no row is skipped or repeated between pages.
+	 * 
+	 * Returns the etag of the table as of the first page.
+	 */
+	public String executeQuery(String sql, String tableId, RowHandler rowHandler) throws SynapseException, InterruptedException {
+		return executeQueryIntern(sql, tableId, rowHandler).getSecond();
+	}
+	
+	/*
+	 * As above, returning the query's headers as well as the etag
+	 */
+	private Pair<List<SelectColumn>, String> executeQueryIntern(String sql, String tableId, RowHandler rowHandler) throws SynapseException, InterruptedException {
+		sql = withStableOrder(sql);
+		QueryResultBundle qrb = getQueryResultBundle(sql, tableId, 0L, null, QUERY_PARTS_MASK);
+		List<SelectColumn> selectColumns = qrb.getSelectColumns();
+		String etag = qrb.getQueryResult().getQueryResults().getEtag();
+		long queryCount = qrb.getQueryCount();
+		Long pageSize = qrb.getMaxRowsPerPage();
+		long offset = 0L;
+		while (true) {
+			List<Row> rows = qrb.getQueryResult().getQueryResults().getRows();
+			for (Row row : rows) rowHandler.handleRow(selectColumns, row);
+			offset += rows.size();
+			if (rows.isEmpty() || offset>=queryCount) break;
+			qrb = getQueryResultBundle(sql, tableId, offset, pageSize, SynapseClient.QUERY_PARTMASK);
 		}
-		if (qrb==null) throw new RuntimeException("Query failed to return");
-		List<Row> rows = qrb.getQueryResult().getQueryResults().getRows();
-		if (qrb.getQueryCount()>rows.size()) throw new IllegalStateException(
-				"Queried for "+queryLimit+" users but got back "+ rows.size()+" and total count: "+qrb.getQueryCount());
-		return new Pair<List<SelectColumn>, RowSet>(qrb.getSelectColumns(), qrb.getQueryResult().getQueryResults());
+		if (offset<queryCount) throw new IllegalStateException(
+				"Expected "+queryCount+" rows but query returned "+offset);
+		return new Pair<List<SelectColumn>, String>(selectColumns, etag);
+	}
+	
+	static String withStableOrder(String sql) {
+		if (sql.toUpperCase().contains(" ORDER BY ")) return sql;
+		return sql+" ORDER BY ROW_ID";
+	}
+	
+	private QueryResultBundle getQueryResultBundle(String sql, final String tableId, Long offset, Long limit, int partMask) throws SynapseException, InterruptedException {
+		final String asyncJobToken = synapseClient.queryTableEntityBundleAsyncStart(sql, offset, limit, partMask, tableId);
+		return asyncJobWaiter.waitForResult(AsyncJobWaiter.getQueryShape(sql), new AsyncJobWaiter.JobResultPoller<QueryResultBundle>() {
+			public QueryResultBundle poll() throws SynapseException {
+				return synapseClient.queryTableEntityBundleAsyncGet(asyncJobToken, tableId);
+			}
+		});
 	}
 
 
@@ -0,0 +1,69 @@
+package org.sagebionetworks;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.reflection.model.PaginatedResults;
+import org.sagebionetworks.repo.model.MembershipRequest;
+
+/*
+ * Checks for open membership requests in Synapse.
+ * 
+ * Users are checked in bulk by paging through all the open requests for the team.  
+ * This stops as soon as every user has been found, and falls back to checking the 
+ * remaining users one at a time whenever that would take fewer calls than the pages
+ * left to read.
+ */
+public class TeamMembershipRequestChecker implements BulkMembershipRequestChecker {
+	private static final long PAGE_SIZE = 50L;
+	
+	private SynapseClient synapseClient;
+	
+	public TeamMembershipRequestChecker(SynapseClient synapseClient) {
+		this.synapseClient=synapseClient;
+	}
+
+	@Override
+	public boolean doesMembershipRequestExist(String teamId, String userId) throws SynapseException {
+		PaginatedResults<MembershipRequest> pgs = synapseClient.getOpenMembershipRequests(teamId, userId, 1, 0);
+		return pgs.getTotalNumberOfResults()>0;
+	}
+
+	@Override
+	public Set<String> getUsersWithMembershipRequests(String teamId, Collection<String> userIds) throws SynapseException {
+		Set<String> remaining = new HashSet<String>(userIds);
+		Set<String> result = new HashSet<String>();
+		// for a single user it's never worth reading the team's requests
+		if (remaining.size()>1) {
+			long total = Long.MAX_VALUE; // unknown until the first page is read
+			for (long offset=0L; !remaining.isEmpty(); offset+=PAGE_SIZE) {
+				if (offset>=total) {
+					// we've read every request for the team
+					remaining.clear();
+					break;
+				}
+				if (offset>0L) {
+					long pagesLeft = (total-offset+PAGE_SIZE-1)/PAGE_SIZE;
+					if (remaining.size()<=pagesLeft) break;
+				}
+				PaginatedResults<MembershipRequest> pgs = synapseClient.getOpenMembershipRequests(teamId, null, PAGE_SIZE, offset);
+				total = pgs.getTotalNumberOfResults();
+				for (MembershipRequest mr : pgs.getResults()) {
+					if (remaining.remove(mr.getUserId())) result.add(mr.getUserId());
+				}
+				if (pgs.getResults().isEmpty()) {
+					remaining.clear();
+				}
+			}
+		}
+		// any users not yet resolved are checked individually
+		for (String userId : remaining) {
+			if (doesMembershipRequestExist(teamId, userId)) result.add(userId);
+		}
+		return result;
+	}
+
+}
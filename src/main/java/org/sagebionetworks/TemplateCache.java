@@ -0,0 +1,112 @@
+package org.sagebionetworks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.Entity;
+import org.sagebionetworks.repo.model.FileEntity;
+
+/*
+ * An in-memory cache of the email templates stored as file entities in Synapse.
+ * 
+ * Template content is keyed by entity ID and version (e.g. syn123.4) and is held 
+ * along with the entity's etag, so that a template which is updated in place is
+ * downloaded again.  The entity's current version is rechecked at most once every
+ * REVALIDATION_MILLIS.  The least recently used templates are evicted once
+ * there are more than MAX_TEMPLATES.
+ * 
+ * The cache is locked only to read and update the maps, not while Synapse is called,
+ * so a slow download doesn't hold up lookups of other templates.  Two threads missing
+ * on the same template at once may both download it, which is harmless.
+ */
+public class TemplateCache {
+	static final int MAX_TEMPLATES = 50;
+	static final long REVALIDATION_MILLIS = 60000L;
+	private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+	private static final int READ_TIMEOUT_MILLIS = 30000;
+
+	private SynapseClient synapseClient;
+	
+	// key is <entity ID>.<version>
+	private Map<String, CachedTemplate> templates = new LinkedHashMap<String, CachedTemplate>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedTemplate> eldest) {
+			return size()>MAX_TEMPLATES;
+		}
+	};
+	
+	// key is entity ID, value is the last version checked and when it was checked
+	private Map<String, Pair<String, Long>> currentVersions = new HashMap<String, Pair<String, Long>>();
+	
+	private static class CachedTemplate {
+		private String etag;
+		private String content;
+		
+		public CachedTemplate(String etag, String content) {
+			this.etag = etag;
+			this.content = content;
+		}
+	}
+
+	public TemplateCache(SynapseClient synapseClient) {
+		this.synapseClient=synapseClient;
+	}
+	
+	/*
+	 * Return the content of the current version of the given template
+	 */
+	public String getTemplate(String templateId) throws IOException, SynapseException {
+		long now = currentTimeMillis();
+		synchronized (this) {
+			Pair<String, Long> currentVersion = currentVersions.get(templateId);
+			if (currentVersion!=null && now-currentVersion.getSecond()<REVALIDATION_MILLIS) {
+				CachedTemplate template = templates.get(currentVersion.getFirst());
+				if (template!=null) return template.content;
+			}
+		}
+		Entity entity = synapseClient.getEntityById(templateId);
+		if (!(entity instanceof FileEntity)) throw new IllegalArgumentException(templateId+" is not a file.");
+		Long versionNumber = ((FileEntity)entity).getVersionNumber();
+		String key = templateId+"."+versionNumber;
+		CachedTemplate template;
+		synchronized (this) {
+			template = templates.get(key);
+		}
+		if (template==null || !template.etag.equals(entity.getEtag())) {
+			template = new CachedTemplate(entity.getEtag(), download(templateId, versionNumber));
+		}
+		synchronized (this) {
+			templates.put(key, template);
+			currentVersions.put(templateId, new Pair<String, Long>(key, now));
+		}
+		return template.content;
+	}
+	
+	private String download(String templateId, Long versionNumber) throws IOException, SynapseException {
+		URL url = synapseClient.getFileEntityTemporaryUrlForVersion(templateId, versionNumber);
+		URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+		connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+		InputStream is = connection.getInputStream();
+		try {
+			return IOUtils.toString(is, "utf-8");
+		} finally {
+			is.close();
+		}
+	}
+	
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+}
@@ -0,0 +1,172 @@
+package org.sagebionetworks;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/*
+ * Finds the tokens in a block of text, where a token is the text between two consecutive
+ * occurrences of the same terminator.  Any number of terminators may be recognized.
+ * 
+ * The input is scanned just once, whatever the number of terminators, using an Aho-Corasick
+ * automaton built over the terminators.  Each terminator is matched independently, with the
+ * same result as repeatedly calling indexOf() for it: after a token is found, the search for 
+ * its terminator resumes after the trailing occurrence.
+ * 
+ * The terminators must be ASCII.  Whitespace is removed from the returned tokens.
+ */
+public class TokenScanner {
+	private static final int ALPHABET_SIZE = 256;
+	private static final int ROOT = 0;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private String[] terminators;
+	// the automaton's next state for each state and input symbol
+	private int[][] transitions;
+	// the terminators which end at each state
+	private int[][] matches;
+	
+	public TokenScanner(String... terminators) {
+		this.terminators=terminators;
+		List<int[]> trie = new ArrayList<int[]>();
+		List<List<Integer>> trieMatches = new ArrayList<List<Integer>>();
+		trie.add(newState());
+		trieMatches.add(new ArrayList<Integer>());
+		for (int t=0; t<terminators.length; t++) {
+			String terminator = terminators[t];
+			if (terminator.isEmpty()) throw new IllegalArgumentException("Terminator may not be empty.");
+			int state = ROOT;
+			for (int i=0; i<terminator.length(); i++) {
+				char c = terminator.charAt(i);
+				if (c>=ALPHABET_SIZE) throw new IllegalArgumentException("Terminator must be ASCII: "+terminator);
+				if (trie.get(state)[c]<0) {
+					trie.get(state)[c] = trie.size();
+					trie.add(newState());
+					trieMatches.add(new ArrayList<Integer>());
+				}
+				state = trie.get(state)[c];
+			}
+			trieMatches.get(state).add(t);
+		}
+		
+		// fill in the missing transitions breadth first, following the failure links
+		int[] failure = new int[trie.size()];
+		Queue<Integer> queue = new LinkedList<Integer>();
+		for (int c=0; c<ALPHABET_SIZE; c++) {
+			int next = trie.get(ROOT)[c];
+			if (next<0) {
+				trie.get(ROOT)[c] = ROOT;
+			} else {
+				failure[next] = ROOT;
+				queue.add(next);
+			}
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.remove();
+			trieMatches.get(state).addAll(trieMatches.get(failure[state]));
+			for (int c=0; c<ALPHABET_SIZE; c++) {
+				int next = trie.get(state)[c];
+				if (next<0) {
+					trie.get(state)[c] = trie.get(failure[state])[c];
+				} else {
+					failure[next] = trie.get(failure[state])[c];
+					queue.add(next);
+				}
+			}
+		}
+		
+		transitions = trie.toArray(new int[trie.size()][]);
+		matches = new int[trieMatches.size()][];
+		for (int s=0; s<matches.length; s++) {
+			List<Integer> stateMatches = trieMatches.get(s);
+			matches[s] = new int[stateMatches.size()];
+			for (int i=0; i<matches[s].length; i++) matches[s][i] = stateMatches.get(i);
+		}
+	}
+	
+	private static int[] newState() {
+		int[] state = new int[ALPHABET_SIZE];
+		Arrays.fill(state, -1);
+		return state;
+	}
+	
+	/*
+	 * Tracks, for each terminator, where the current token (if any) starts and where
+	 * the next occurrence of the terminator may start.  Collects the token spans found.
+	 */
+	private class Spans {
+		int[] tokenStart = new int[terminators.length];
+		int[] searchFrom = new int[terminators.length];
+		List<int[]> spans = new ArrayList<int[]>();
+		
+		Spans() {
+			Arrays.fill(tokenStart, -1);
+		}
+		
+		// called when the given terminator ends at the given position (inclusive)
+		void terminatorFound(int t, int end) {
+			int start = end-terminators[t].length()+1;
+			if (start<searchFrom[t]) return; // overlaps the previous occurrence
+			if (tokenStart[t]<0) {
+				tokenStart[t] = end+1;
+			} else {
+				spans.add(new int[] {tokenStart[t], start});
+				tokenStart[t] = -1;
+			}
+			searchFrom[t] = end+1;
+		}
+	}
+	
+	public List<String> scan(CharSequence in) {
+		Spans spans = new Spans();
+		int state = ROOT;
+		for (int i=0; i<in.length(); i++) {
+			char c = in.charAt(i);
+			state = c<ALPHABET_SIZE ? transitions[state][c] : ROOT;
+			for (int t : matches[state]) spans.terminatorFound(t, i);
+		}
+		List<String> result = new ArrayList<String>();
+		for (int[] span : spans.spans) {
+			result.add(removeWhitespace(in, span[0], span[1]));
+		}
+		return result;
+	}
+	
+	/*
+	 * Scans raw bytes, which must be UTF-8 (or ASCII).  Only the tokens found are decoded,
+	 * so a multi-byte character in a token (e.g. in its label) is preserved, and one
+	 * elsewhere can't be mistaken for part of a terminator.
+	 */
+	public List<String> scan(byte[] in) {
+		Spans spans = new Spans();
+		int state = ROOT;
+		for (int i=0; i<in.length; i++) {
+			state = transitions[state][in[i] & 0xff];
+			for (int t : matches[state]) spans.terminatorFound(t, i);
+		}
+		List<String> result = new ArrayList<String>();
+		for (int[] span : spans.spans) {
+			String token = new String(in, span[0], span[1]-span[0], UTF_8);
+			result.add(removeWhitespace(token, 0, token.length()));
+		}
+		return result;
+	}
+	
+	private static String removeWhitespace(CharSequence in, int start, int end) {
+		StringBuilder sb = new StringBuilder(end-start);
+		for (int i=start; i<end; i++) {
+			char c = in.charAt(i);
+			if (!isWhitespace(c)) sb.append(c);
+		}
+		return sb.toString();
+	}
+	
+	// the characters matched by \s in a regular expression
+	private static boolean isWhitespace(char c) {
+		return c==' ' || c=='\t' || c=='\n' || c=='\u000B' || c=='\f' || c=='\r';
+	}
+
+}
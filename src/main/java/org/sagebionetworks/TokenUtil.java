@@ -3,18 +3,25 @@ package org.sagebionetworks;
 import static org.sagebionetworks.Util.getProperty;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
@@ -31,6 +38,14 @@ public class TokenUtil {
 	private static final String ACCESS_REQUIREMENT_ID_SEPARATOR = ",";
 	
 	private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+	private static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
+	
+	public static final String V3_TOKEN_PREFIX = "v3.";
+	private static final byte V3_VERSION = 3;
+	// the HMAC-SHA256 signature is truncated to 128 bits
+	private static final int V3_SIGNATURE_LENGTH = 16;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 
 	public static final String TOKEN_TERMINATOR = 
 			"=============== SYNAPSE LINK TOKEN BOUNDARY ===============";
@@ -54,6 +69,11 @@ public class TokenUtil {
 	private static final int V2_HMAC_TOKEN_INDEX = 7;
 	
 	private static final long MILLISEC_PER_DAY = 1000*3600*24L;
+	
+	// below this many tokens it's not worth parsing them in parallel
+	private static final int PARALLEL_PARSE_THRESHOLD = 64;
+	
+	private static final TokenScanner TOKEN_SCANNER = new TokenScanner(TOKEN_TERMINATOR, OLD_TOKEN_TERMINATOR);
 
 	private static List<Long> arIdsFromArString(String accessRequirementIdString) {
 		List<Long> accessRequirementIds = new ArrayList<Long>();
@@ -64,6 +84,17 @@ public class TokenUtil {
 	}
 
 	public static String createToken(String userId, long now, DatasetSettings settings, Long mrExpiration) {
+		String token;
+		try {
+			token = createV3Token(userId, now, settings, mrExpiration);
+		} catch (NumberFormatException e) {
+			// v3 tokens require numeric IDs
+			return createV2Token(userId, now, settings, mrExpiration);
+		}
+		return "\n"+TOKEN_TERMINATOR+"\n"+token+"\n"+TOKEN_TERMINATOR+"\n";
+	}
+
+	public static String createV2Token(String userId, long now, DatasetSettings settings, Long mrExpiration) {
 		String unsignedToken = 
 				createV2UnsignedToken(
 						userId, 
@@ -108,22 +139,91 @@ public class TokenUtil {
 		return sb.toString();
 	}
 
+	/*
+	 * v3 tokens are a binary encoding of (label, userId, applicationTeamId, ars, mrExpiration, timestamp)
+	 * followed by a truncated HMAC-SHA256 signature, rendered in URL-safe Base64 after a "v3." prefix.  
+	 * Numbers are written as varints and times are in epoch seconds.  The layout is:
+	 * 
+	 * version byte (3)
+	 * label length (varint), label (UTF-8)
+	 * userId (varint)
+	 * applicationTeamId (varint)
+	 * number of access requirements (varint), access requirement IDs (varint each)
+	 * membership request expiration in seconds plus one, or zero if none (varint)
+	 * timestamp in seconds (varint)
+	 * signature (V3_SIGNATURE_LENGTH bytes)
+	 */
+	public static String createV3Token(String userId, long now, DatasetSettings settings, Long mrExpiration) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(V3_VERSION);
+		byte[] label = settings.getTokenLabel()==null ? new byte[0] : settings.getTokenLabel().getBytes(UTF_8);
+		writeVarint(out, label.length);
+		out.write(label, 0, label.length);
+		writeVarint(out, Long.parseLong(userId));
+		writeVarint(out, Long.parseLong(settings.getApplicationTeamId()));
+		writeVarint(out, settings.getAccessRequirementIds().size());
+		for (Long arId : settings.getAccessRequirementIds()) writeVarint(out, arId);
+		writeVarint(out, mrExpiration==null ? 0L : mrExpiration/1000L+1L);
+		writeVarint(out, now/1000L);
+		byte[] payload = out.toByteArray();
+		out.write(getHmacSigner(HMAC_SHA256_ALGORITHM).sign(payload, 0, payload.length), 0, V3_SIGNATURE_LENGTH);
+		return V3_TOKEN_PREFIX+Base64.encodeBase64URLSafeString(out.toByteArray());
+	}
+	
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		if (value<0) throw new IllegalArgumentException("Negative value: "+value);
+		while (value>=0x80) {
+			out.write((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+	
+	private static long readVarint(ByteBuffer in) {
+		long result = 0L;
+		for (int shift=0; shift<64; shift+=7) {
+			byte b = in.get();
+			result |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80)==0) return result;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/*
+	 * Reads a count of bytes or items which follow, checking it against what remains,
+	 * since the token has not yet been authenticated when it's parsed.
+	 */
+	private static int readLength(ByteBuffer in) {
+		long length = readVarint(in);
+		if (length<0L || length>in.remaining()) throw new IllegalArgumentException("Length "+length+" exceeds remaining "+in.remaining()+" bytes");
+		return (int)length;
+	}
+
 	public static String hmac(String s) {
-		return new String(generateHMACSHA1SignatureFromBase64EncodedKey(s, getProperty("HMAC_SECRET_KEY")));
+		return new String(getHmacSigner(HMAC_SHA1_ALGORITHM).signBase64(s));
+	}
+	
+	// the signer for each algorithm
+	private static final Map<String,HmacSigner> hmacSigners = new ConcurrentHashMap<String,HmacSigner>();
+	
+	/*
+	 * The key is read from the configuration just once, on first use, rather than on every
+	 * signature.  No lock is needed: at worst two threads both build the same signer.
+	 */
+	private static HmacSigner getHmacSigner(String algorithm) {
+		HmacSigner signer = hmacSigners.get(algorithm);
+		if (signer==null) {
+			signer = HmacSigner.fromBase64EncodedKey(algorithm, getProperty("HMAC_SECRET_KEY"));
+			hmacSigners.put(algorithm, signer);
+		}
+		return signer;
 	}
 
 	/**
 	 * Encodes data using a given BASE-64 Encoded HMAC-SHA1 secret key, base-64 encoding the result
 	 */
 	public static byte[] generateHMACSHA1SignatureFromBase64EncodedKey(String data, String base64EncodedSecretKey) {
-		byte[] secretKey = Base64.decodeBase64(base64EncodedSecretKey.getBytes());
-		try {
-			Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-			mac.init(new SecretKeySpec(secretKey, HMAC_SHA1_ALGORITHM));
-			return Base64.encodeBase64(mac.doFinal(data.getBytes("UTF-8")));
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return HmacSigner.fromBase64EncodedKey(HMAC_SHA1_ALGORITHM, base64EncodedSecretKey).signBase64(data);
 	}
 	
 	/*
@@ -138,23 +238,48 @@ public class TokenUtil {
 	}
 
 	public static Set<TokenAnalysisResult> parseTokensFromInput(byte[] in, Map<String,DatasetSettings> settings, MembershipRequestChecker mrc, long now, String approverId) throws IOException, SynapseException {
+		MimeMessage message = null;
+		try {
+			message = MessageUtil.readMessageFromInputStream(new ByteArrayInputStream(in));
+		} catch (MessagingException e) {
+			// this is the case if the content is not a serialized message
+		}
+		return parseTokensFromInput(in, message, settings, mrc, now, approverId);
+	}
+
+	/*
+	 * As above, for a caller which has already parsed the input as a MimeMessage
+	 * (message is null if the input is not a serialized message)
+	 */
+	public static Set<TokenAnalysisResult> parseTokensFromInput(byte[] in, MimeMessage message, Map<String,DatasetSettings> settings, MembershipRequestChecker mrc, long now, String approverId) throws IOException, SynapseException {
 		// first, just treat the input stream as a plain file
 		Set<TokenAnalysisResult> tarList = new HashSet<TokenAnalysisResult>();
-		tarList.addAll(parseTokensFromString(new String(in)));
+		tarList.addAll(parseTokens(TOKEN_SCANNER.scan(in)));
 		// now treat it as a serialized message
 		// we may find the same tokens, or we may find ones not previously found
 		// (e.g. if they were in an encoded attachment)
 		// since the result is a Set, any repeats will be eliminated.
-		try {
-			MimeMessage message = MessageUtil.readMessageFromInputStream(new ByteArrayInputStream(in));
-			tarList.addAll(parseTokensFromMessageContent(message.getContent()));
-		} catch (MessagingException e) {
-			// this is the case if the content is not a serialized message
+		if (message!=null) {
+			try {
+				tarList.addAll(parseTokensFromMessageContent(message.getContent()));
+			} catch (MessagingException e) {
+				// this is the case if the content is not a serialized message
+			}
 		}
 		
+		return verifyTokens(tarList, settings, mrc, now, approverId);
+	}
+	
+	/*
+	 * Checks that the given tokens, whose signatures have already been checked, are authorized,
+	 * current and expected by Synapse.  The membership requests are checked a team at a time,
+	 * so a BulkMembershipRequestChecker can check all the users for a team together.
+	 */
+	public static Set<TokenAnalysisResult> verifyTokens(Collection<TokenAnalysisResult> tarList, Map<String,DatasetSettings> settings, MembershipRequestChecker mrc, long now, String approverId) throws SynapseException {
 		Set<TokenAnalysisResult> result = new HashSet<TokenAnalysisResult>();
 		
 		// check for expired tokens
+		Map<String,List<TokenAnalysisResult>> tokensToCheckByTeam = new HashMap<String,List<TokenAnalysisResult>>();
 		for (TokenAnalysisResult tar : tarList) {
 			if (tar.isValid()) {
 				String applicationTeamId = tar.getTokenContent().getApplicationTeamId();
@@ -165,16 +290,42 @@ public class TokenUtil {
 					result.add(createFailedTokenAnalysisResult(tc, tar.getUserId(), "Submitter is not authorized to approve this access token."));
 				} else if (tc.getTimestamp().getTime()+tokenTimeoutMillis<now) {
 					result.add(createFailedTokenAnalysisResult(tc, tar.getUserId(), "Message timestamp has expired. Applicant must reinitiate the approval process."));
-				} else if (!mrc.doesMembershipRequestExist(tar.getTokenContent().getApplicationTeamId(), ""+tar.getTokenContent().getUserId())) {
-					result.add(createFailedTokenAnalysisResult(tc, tar.getUserId(), "Synapse is not expecting approval token. Applicant must reinitiate the approval process."));
 				} else {
-					result.add(tar);
+					List<TokenAnalysisResult> teamTokens = tokensToCheckByTeam.get(applicationTeamId);
+					if (teamTokens==null) {
+						teamTokens = new ArrayList<TokenAnalysisResult>();
+						tokensToCheckByTeam.put(applicationTeamId, teamTokens);
+					}
+					teamTokens.add(tar);
 				}
 			} else {
 				result.add(tar);
 			}
 		}
 		
+		// check that there are membership requests for the remaining tokens
+		for (String applicationTeamId : tokensToCheckByTeam.keySet()) {
+			List<TokenAnalysisResult> teamTokens = tokensToCheckByTeam.get(applicationTeamId);
+			Set<String> userIds = new HashSet<String>();
+			for (TokenAnalysisResult tar : teamTokens) userIds.add(""+tar.getTokenContent().getUserId());
+			Set<String> usersWithRequests;
+			if (mrc instanceof BulkMembershipRequestChecker) {
+				usersWithRequests = ((BulkMembershipRequestChecker)mrc).getUsersWithMembershipRequests(applicationTeamId, userIds);
+			} else {
+				usersWithRequests = new HashSet<String>();
+				for (String userId : userIds) {
+					if (mrc.doesMembershipRequestExist(applicationTeamId, userId)) usersWithRequests.add(userId);
+				}
+			}
+			for (TokenAnalysisResult tar : teamTokens) {
+				if (usersWithRequests.contains(""+tar.getTokenContent().getUserId())) {
+					result.add(tar);
+				} else {
+					result.add(createFailedTokenAnalysisResult(tar.getTokenContent(), tar.getUserId(), "Synapse is not expecting approval token. Applicant must reinitiate the approval process."));
+				}
+			}
+		}
+		
 		return result;
 	}
 
@@ -186,8 +337,7 @@ public class TokenUtil {
 			return parseTokensFromString((String)content);
 		} else if (content instanceof InputStream) {
 			InputStream is = (InputStream)content;
-			String s = new String(IOUtils.toByteArray(is));
-			return parseTokensFromString(s);
+			return parseTokens(TOKEN_SCANNER.scan(IOUtils.toByteArray(is)));
 		} else if (content instanceof MimeMultipart) {
 			Set<TokenAnalysisResult> result = new HashSet<TokenAnalysisResult>();
 			MimeMultipart mmp = (MimeMultipart) content;
@@ -205,34 +355,47 @@ public class TokenUtil {
 	}
 
 	private static Set<TokenAnalysisResult> parseTokensFromString(String messageContent) throws IOException {
-		Set<TokenAnalysisResult> result = new HashSet<TokenAnalysisResult>();
-		result.addAll(parseTokensFromString(messageContent, TOKEN_TERMINATOR));
-		result.addAll(parseTokensFromString(messageContent, OLD_TOKEN_TERMINATOR));
-		return result;
+		return parseTokens(TOKEN_SCANNER.scan(messageContent));
 	}
 		
 	/*
 	 * Since a message may include the same content multiple times (e.g. as plain text
 	 * and html) we combine the extracted tokens in a Set to eliminate duplicates)
 	 */
-	private static Set<TokenAnalysisResult> parseTokensFromString(String messageContent, String tokenTerminator) throws IOException {
+	private static Set<TokenAnalysisResult> parseTokens(List<String> tokens) {
+		// there was a case in which a line break was added to the HMAC. There shouldn't be line
+		// breaks (or any other white space), so the scanner removes it altogether
+		if (tokens.size()<PARALLEL_PARSE_THRESHOLD) return parseTokens(tokens, 0, tokens.size());
+		
+		// for a large batch, the signatures are checked in parallel, a slice per processor
+		final List<String> tokenList = tokens;
+		int processors = Runtime.getRuntime().availableProcessors();
+		int sliceSize = (tokens.size()+processors-1)/processors;
+		List<Callable<Set<TokenAnalysisResult>>> slices = new ArrayList<Callable<Set<TokenAnalysisResult>>>();
+		for (int start=0; start<tokens.size(); start+=sliceSize) {
+			final int sliceStart = start;
+			final int sliceEnd = Math.min(start+sliceSize, tokens.size());
+			slices.add(new Callable<Set<TokenAnalysisResult>>() {
+				@Override
+				public Set<TokenAnalysisResult> call() {
+					return parseTokens(tokenList, sliceStart, sliceEnd);
+				}
+			});
+		}
 		Set<TokenAnalysisResult> result = new HashSet<TokenAnalysisResult>();
-		int start = 0;
-		int leadingTerminator = messageContent.indexOf(tokenTerminator, start);
-		while (leadingTerminator>=0) {
-			int tokenStart = leadingTerminator+tokenTerminator.length();
-			int trailingTerminator = messageContent.indexOf(tokenTerminator, tokenStart);
-			if (trailingTerminator<0) { 
-				break;
-			} else {
-				String tokenSubstring = messageContent.substring(tokenStart, trailingTerminator).trim();
-				// there was a case in which a line break was added to the HMAC. There shouldn't be line
-				// breaks (or any other white space, so we just remove it altogether
-				result.add(parseToken( tokenSubstring.replaceAll("\\s", "")));
-				start = trailingTerminator+tokenTerminator.length();
+		try {
+			for (Future<Set<TokenAnalysisResult>> slice : new BoundedExecutor(processors).invokeAll(slices)) {
+				result.addAll(BoundedExecutor.getResult(slice));
 			}
-			leadingTerminator = messageContent.indexOf(tokenTerminator, start);
-		} 
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return result;
+	}
+	
+	private static Set<TokenAnalysisResult> parseTokens(List<String> tokens, int start, int end) {
+		Set<TokenAnalysisResult> result = new HashSet<TokenAnalysisResult>();
+		for (int i=start; i<end; i++) result.add(parseToken(tokens.get(i)));
 		return result;
 	}
 	
@@ -245,6 +408,11 @@ public class TokenUtil {
 	}
 	
 	public static TokenAnalysisResult parseToken(String token) {
+		// v3 tokens have no part separators, but may have garbage characters around them
+		int v3Start = token.indexOf(V3_TOKEN_PREFIX);
+		if (v3Start>=0 && token.indexOf(PART_SEPARATOR)<0) {
+			return parseV3Token(token, v3Start+V3_TOKEN_PREFIX.length());
+		}
 		String[] tokenParts = token.split(REGEX_FOR_PART_SEPARATOR);
 		// handling of the token could put some garbage characters at the end of the string, 
 		// increasing the token pieces from 5 to 6
@@ -285,12 +453,11 @@ public class TokenUtil {
 		} catch (NumberFormatException e) {
 			return createFailedTokenAnalysisResult(userId, "Bad Access Requirement ID list in token: "+accessRequirementIdString);
 		}
-		String recomputedHmac = hmac(
-				createV1UnsignedToken(
+		String unsignedToken = createV1UnsignedToken(
 						""+userId, 
 						accessRequirementIds, 
-						epochString));
-		if (!hmac.equals(recomputedHmac)) return createFailedTokenAnalysisResult(userId, "Message has an invalid digital signature. "+Arrays.asList(tokenParts));
+						epochString);
+		if (!getHmacSigner(HMAC_SHA1_ALGORITHM).verifyBase64(unsignedToken, hmac)) return createFailedTokenAnalysisResult(userId, "Message has an invalid digital signature. "+Arrays.asList(tokenParts));
 		
 		return new TokenAnalysisResult(new TokenContent(userId, accessRequirementIds, new Date(epoch), 
 				null, getProperty("ORIGINAL_APPLICATION_TEAM_ID"), null), true, userId, null);
@@ -332,16 +499,61 @@ public class TokenUtil {
 		} catch (NumberFormatException e) {
 			return createFailedTokenAnalysisResult(userId, "Illegal membership request time stamp in token: "+mrExpirationString);
 		}
-		String recomputedHmac = hmac(
-				createV2UnsignedToken(
+		String unsignedToken = createV2UnsignedToken(
 						""+userId, 
 						Long.parseLong(epochString), 
 						settings, 
-						mrExpiration));
-		if (!hmac.equals(recomputedHmac)) return createFailedTokenAnalysisResult(userId, "Token has an invalid digital signature. "+Arrays.asList(tokenParts));
+						mrExpiration);
+		if (!getHmacSigner(HMAC_SHA1_ALGORITHM).verifyBase64(unsignedToken, hmac)) return createFailedTokenAnalysisResult(userId, "Token has an invalid digital signature. "+Arrays.asList(tokenParts));
 		TokenContent tokenContent = new TokenContent(userId, accessRequirementIds, new Date(epoch), 
 				settings.getTokenLabel(), settings.getApplicationTeamId(), mrExpiration==null?null:new Date(mrExpiration));
 		return new TokenAnalysisResult(tokenContent, true, userId, null);
 	}
 	
+	private static boolean isURLSafeBase64Char(char c) {
+		return (c>='A' && c<='Z') || (c>='a' && c<='z') || (c>='0' && c<='9') || c=='-' || c=='_';
+	}
+	
+	private static TokenAnalysisResult parseV3Token(String token, int start) {
+		int end = start;
+		while (end<token.length() && isURLSafeBase64Char(token.charAt(end))) end++;
+		byte[] bytes = Base64.decodeBase64(token.substring(start, end));
+		if (bytes.length<=V3_SIGNATURE_LENGTH) return createFailedTokenAnalysisResult(null, "Incorrectly formatted token found: "+token);
+		int payloadLength = bytes.length-V3_SIGNATURE_LENGTH;
+		
+		Long userId = null;
+		DatasetSettings settings = new DatasetSettings();
+		Long mrExpiration;
+		long epoch;
+		try {
+			ByteBuffer in = ByteBuffer.wrap(bytes, 0, payloadLength);
+			if (in.get()!=V3_VERSION) return createFailedTokenAnalysisResult(null, "Unsupported token version: "+token);
+			byte[] label = new byte[readLength(in)];
+			in.get(label);
+			settings.setTokenLabel(new String(label, UTF_8));
+			userId = readVarint(in);
+			settings.setApplicationTeamId(""+readVarint(in));
+			// each ID takes at least one byte
+			int arCount = readLength(in);
+			List<Long> accessRequirementIds = new ArrayList<Long>();
+			for (int i=0; i<arCount; i++) accessRequirementIds.add(readVarint(in));
+			settings.setAccessRequirementIds(accessRequirementIds);
+			long mrExpirationPlusOne = readVarint(in);
+			mrExpiration = mrExpirationPlusOne==0L ? null : (mrExpirationPlusOne-1L)*1000L;
+			epoch = readVarint(in)*1000L;
+			if (in.hasRemaining()) throw new IllegalArgumentException("Unexpected trailing bytes");
+		} catch (RuntimeException e) {
+			// thrown by ByteBuffer if the token is truncated, or by us if it's malformed
+			return createFailedTokenAnalysisResult(userId, "Incorrectly formatted token found: "+token);
+		}
+		
+		byte[] signature = getHmacSigner(HMAC_SHA256_ALGORITHM).sign(bytes, 0, payloadLength);
+		byte[] expected = Arrays.copyOf(signature, V3_SIGNATURE_LENGTH);
+		byte[] actual = Arrays.copyOfRange(bytes, payloadLength, bytes.length);
+		if (!MessageDigest.isEqual(expected, actual)) return createFailedTokenAnalysisResult(userId, "Token has an invalid digital signature. "+token);
+		TokenContent tokenContent = new TokenContent(userId, settings.getAccessRequirementIds(), new Date(epoch), 
+				settings.getTokenLabel(), settings.getApplicationTeamId(), mrExpiration==null?null:new Date(mrExpiration));
+		return new TokenAnalysisResult(tokenContent, true, userId, null);
+	}
+	
 }
@@ -0,0 +1,68 @@
+package org.sagebionetworks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.UserProfile;
+
+/*
+ * Resolves user profiles for the length of a run, so that no profile is fetched twice.
+ * 
+ * A processing stage first calls prefetch() with all the user IDs it will need.  These
+ * are retrieved in bulk, BATCH_SIZE at a time.  Any profile not found that way is
+ * retrieved individually when it's requested.
+ */
+public class UserProfileCache {
+	private static final int BATCH_SIZE = 100;
+	
+	private SynapseClient synapseClient;
+	private Map<String, UserProfile> profiles = new ConcurrentHashMap<String, UserProfile>();
+	
+	public UserProfileCache(SynapseClient synapseClient) {
+		this.synapseClient=synapseClient;
+	}
+	
+	public void prefetch(Collection<String> userIds) {
+		Set<String> toFetch = new LinkedHashSet<String>();
+		for (String userId : userIds) {
+			if (!profiles.containsKey(userId)) toFetch.add(userId);
+		}
+		List<Long> batch = new ArrayList<Long>();
+		for (String userId : toFetch) {
+			batch.add(Long.parseLong(userId));
+			if (batch.size()>=BATCH_SIZE) {
+				fetchBatch(batch);
+				batch = new ArrayList<Long>();
+			}
+		}
+		if (!batch.isEmpty()) fetchBatch(batch);
+	}
+	
+	private void fetchBatch(List<Long> userIds) {
+		try {
+			for (UserProfile profile : synapseClient.listUserProfiles(userIds)) {
+				profiles.put(profile.getOwnerId(), profile);
+			}
+		} catch (SynapseException e) {
+			// not fatal: the profiles will be retrieved one at a time
+			e.printStackTrace();
+		}
+	}
+	
+	public UserProfile getUserProfile(String userId) throws SynapseException {
+		UserProfile profile = profiles.get(userId);
+		if (profile==null) {
+			profile = synapseClient.getUserProfile(userId);
+			if (profile!=null) profiles.put(userId, profile);
+		}
+		return profile;
+	}
+
+}
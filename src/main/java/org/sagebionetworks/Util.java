@@ -10,7 +10,7 @@ import org.apache.commons.lang3.StringUtils;
 public class Util {
 	private static Properties properties = null;
 
-	private static void initProperties() {
+	private static synchronized void initProperties() {
 		if (properties!=null) return;
 		properties = new Properties();
 		InputStream is = null;
@@ -43,6 +43,12 @@ public class Util {
 		if (missingOK) return null; else throw new RuntimeException("Cannot find value for "+key);
 	}	
 
+	public static int getIntProperty(String key, int defaultValue) {
+		String value = getProperty(key, true);
+		if (value==null) return defaultValue;
+		return Integer.parseInt(value.trim());
+	}
+
 	public static Date cleanDate(Date d) {
 		if (d==null) return d;
 		if (d.getTime()==0L) return null;
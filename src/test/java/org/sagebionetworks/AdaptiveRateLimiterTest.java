@@ -0,0 +1,87 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveRateLimiterTest {
+	
+	private long now;
+	private long slept;
+	private AdaptiveRateLimiter limiter;
+	
+	@Before
+	public void before() {
+		now = 1000000L;
+		slept = 0L;
+		limiter = new AdaptiveRateLimiter(10, 1, 20, 2) {
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+			@Override
+			protected void sleep(long millis) {
+				slept += millis;
+				now += millis;
+			}
+		};
+	}
+
+	@Test
+	public void testCallsAreSpacedAtTheRate() throws Exception {
+		for (int i=0; i<11; i++) {
+			limiter.acquire();
+			limiter.release();
+		}
+		// the first call is immediate, the other ten are spaced by 100ms
+		assertEquals(1000L, slept);
+	}
+
+	@Test
+	public void testAdaptation() throws Exception {
+		limiter.onThrottled();
+		assertEquals(5.0, limiter.getRate(), 1e-9);
+		// further throttling in the same instant is the same event
+		limiter.onThrottled();
+		assertEquals(5.0, limiter.getRate(), 1e-9);
+		now += 2000L;
+		limiter.onThrottled();
+		assertEquals(2.5, limiter.getRate(), 1e-9);
+		now += 2000L;
+		limiter.onThrottled();
+		now += 2000L;
+		limiter.onThrottled();
+		// not below the minimum
+		assertEquals(1.0, limiter.getRate(), 1e-9);
+		
+		for (int i=0; i<1000; i++) limiter.onSuccess();
+		// not above the maximum
+		assertEquals(20.0, limiter.getRate(), 1e-9);
+	}
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		limiter.acquire();
+		limiter.acquire();
+		final boolean[] acquired = new boolean[] {false};
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					limiter.acquire();
+					acquired[0] = true;
+				} catch (InterruptedException e) {
+					// test will fail
+				}
+			}});
+		thread.start();
+		thread.join(200L);
+		assertTrue(thread.isAlive());
+		limiter.release();
+		thread.join(5000L);
+		assertTrue(acquired[0]);
+	}
+
+}
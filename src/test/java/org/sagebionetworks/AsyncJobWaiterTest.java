@@ -0,0 +1,105 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
+
+public class AsyncJobWaiterTest {
+	
+	/*
+	 * A waiter whose clock only advances when it sleeps
+	 */
+	private static class TestWaiter extends AsyncJobWaiter {
+		long now = 0L;
+		int sleeps = 0;
+		
+		TestWaiter(long deadlineMillis) {
+			super(deadlineMillis);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+
+		@Override
+		protected void sleep(long millis) {
+			now += millis;
+			sleeps++;
+		}
+	}
+	
+	/*
+	 * A job which completes at the given time on the waiter's clock
+	 */
+	private static AsyncJobWaiter.JobResultPoller<String> createJob(final TestWaiter waiter, final long readyAt) {
+		return new AsyncJobWaiter.JobResultPoller<String>() {
+			public String poll() throws SynapseException {
+				if (waiter.now<readyAt) throw new SynapseResultNotReadyException();
+				return "done";
+			}
+		};
+	}
+
+	@Test
+	public void testGetQueryShape() throws Exception {
+		assertEquals("SELECT * FROM syn101 WHERE UserId IN (?) AND \"ApplicationTeamId\"=?",
+				AsyncJobWaiter.getQueryShape("SELECT * FROM syn101 WHERE UserId IN (111, 222,333) AND \"ApplicationTeamId\"='999'"));
+	}
+
+	@Test
+	public void testWaitForResult() throws Exception {
+		TestWaiter waiter = new TestWaiter(60000L);
+		long start = waiter.now;
+		assertEquals("done", waiter.waitForResult("shape", createJob(waiter, 1000L)));
+		// the total wait is bounded by the capped backoff
+		assertTrue(waiter.now-start < 3000L);
+		
+		// once typical completion times are known the first poll is made at a fraction of that time
+		for (int i=0; i<10; i++) {
+			start = waiter.now;
+			waiter.waitForResult("shape", createJob(waiter, start+1000L));
+		}
+		long firstDelay = waiter.getFirstDelay("shape");
+		assertTrue(""+firstDelay, firstDelay>=400L && firstDelay<=750L);
+		assertEquals(100L, waiter.getFirstDelay("other shape"));
+	}
+
+	@Test
+	public void testRecoveryAfterSlowJob() throws Exception {
+		TestWaiter waiter = new TestWaiter(60000L);
+		for (int i=0; i<10; i++) {
+			waiter.waitForResult("shape", createJob(waiter, waiter.now+100L));
+		}
+		// one slow job raises the first delay
+		waiter.waitForResult("shape", createJob(waiter, waiter.now+5000L));
+		assertTrue(waiter.getFirstDelay("shape")>500L);
+		
+		// but it comes back down as fast jobs complete
+		for (int i=0; i<30; i++) {
+			waiter.waitForResult("shape", createJob(waiter, waiter.now+10L));
+		}
+		long firstDelay = waiter.getFirstDelay("shape");
+		assertTrue(""+firstDelay, firstDelay<=100L);
+		long start = waiter.now;
+		waiter.waitForResult("shape", createJob(waiter, start+10L));
+		assertTrue(waiter.now-start <= 100L);
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		TestWaiter waiter = new TestWaiter(10000L);
+		try {
+			waiter.waitForResult("shape", createJob(waiter, Long.MAX_VALUE));
+			fail("Expected RuntimeException");
+		} catch (RuntimeException e) {
+			// as expected
+		}
+		assertEquals(10000L, waiter.now);
+	}
+
+}
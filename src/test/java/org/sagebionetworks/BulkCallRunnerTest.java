@@ -0,0 +1,46 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BulkCallRunnerTest {
+
+	@Test
+	public void testFailuresAreReportedPerKey() throws Exception {
+		final AtomicInteger callCount = new AtomicInteger();
+		BulkCallRunner<String> runner = new BulkCallRunner<String>(4);
+		for (int i=0; i<10; i++) {
+			final int n = i;
+			runner.add(Collections.singletonList("user"+i), new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					callCount.incrementAndGet();
+					if (n==3) throw new IllegalStateException("failed "+n);
+					return null;
+				}});
+		}
+		// a call on behalf of two users
+		runner.add(Arrays.asList(new String[] {"user5", "user6"}), new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				throw new IllegalStateException("failed shared");
+			}});
+		
+		Map<String, Exception> failures = runner.run();
+		
+		// one failure did not stop the other calls
+		assertEquals(10, callCount.get());
+		assertEquals(Arrays.asList(new String[] {"user3", "user5", "user6"}), 
+				Arrays.asList(failures.keySet().toArray(new String[0])));
+		assertEquals("failed 3", failures.get("user3").getMessage());
+		assertEquals("failed shared", failures.get("user6").getMessage());
+	}
+
+}
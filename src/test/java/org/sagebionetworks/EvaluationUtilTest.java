@@ -1,12 +1,9 @@
 package org.sagebionetworks;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
 import static org.sagebionetworks.Util.getProperty;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.Collections;
@@ -30,7 +27,6 @@ import org.sagebionetworks.repo.model.annotation.StringAnnotation;
 import org.sagebionetworks.repo.model.auth.LoginRequest;
 import org.sagebionetworks.repo.model.file.CloudProviderFileHandleInterface;
 
-import com.amazonaws.util.IOUtils;
 
 public class EvaluationUtilTest {
 	
@@ -149,20 +145,13 @@ public class EvaluationUtilTest {
 	}
 	
 	@Test
-	public void testDownloadSubmissionFile() throws Exception {
+	public void testDownloadSubmissionContent() throws Exception {
 		if (StringUtils.isEmpty(getProperty("USERNAME", true))) return; // no properties
 		setup();
 		Submission submission = createSubmission(evaluation.getId());
 		EvaluationUtil evaluationUtil = new EvaluationUtil(synapseClient);
-		File file = evaluationUtil.downloadSubmissionFile(submission);
-		assertTrue(file.exists());
-		FileInputStream is = new FileInputStream(file);
-		try {
-			String fileContent = IOUtils.toString(is);
-			assertEquals(FILE_CONTENT, fileContent);
-		} finally {
-			is.close();
-		}
+		byte[] content = evaluationUtil.downloadSubmissionContent(submission);
+		assertEquals(FILE_CONTENT, new String(content));
 	}
 
 }
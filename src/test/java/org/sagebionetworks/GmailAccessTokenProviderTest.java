@@ -0,0 +1,57 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class GmailAccessTokenProviderTest {
+	
+	private long now;
+	private AtomicInteger requestCount;
+	private GmailAccessTokenProvider provider;
+	
+	@Before
+	public void before() {
+		now = 1000000L;
+		requestCount = new AtomicInteger();
+		provider = new GmailAccessTokenProvider() {
+			@Override
+			protected Pair<String,Long> requestAccessToken() {
+				return new Pair<String,Long>("token"+requestCount.incrementAndGet(), 3600L);
+			}
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+	}
+
+	@Test
+	public void testTokenIsCachedUntilNearExpiry() throws Exception {
+		assertEquals("token1", provider.getAccessToken());
+		now += 30*60*1000L;
+		for (int i=0; i<100; i++) assertEquals("token1", provider.getAccessToken());
+		assertEquals(1, requestCount.get());
+		
+		// once the token has (nearly) expired, callers wait for a new one
+		now += 30*60*1000L;
+		assertEquals("token2", provider.getAccessToken());
+		assertEquals(2, requestCount.get());
+	}
+
+	@Test
+	public void testRefreshAhead() throws Exception {
+		assertEquals("token1", provider.getAccessToken());
+		// within the refresh-ahead window, the cached token is returned while a new one is fetched
+		now += 57*60*1000L;
+		assertEquals("token1", provider.getAccessToken());
+		for (int i=0; i<100 && requestCount.get()<2; i++) Thread.sleep(50L);
+		assertEquals(2, requestCount.get());
+		for (int i=0; i<100 && !provider.getAccessToken().equals("token2"); i++) Thread.sleep(50L);
+		assertEquals("token2", provider.getAccessToken());
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class HmacSignerTest {
+
+	private static final String ALGORITHM = "HmacSHA1";
+	private static final HmacSigner SIGNER = HmacSigner.fromBase64EncodedKey(ALGORITHM, "Zm9vYmFy");
+
+	@Test
+	public void testSignAndVerify() throws Exception {
+		String signature = new String(SIGNER.signBase64("some data"), "US-ASCII");
+		assertTrue(SIGNER.verifyBase64("some data", signature));
+		// the same signature, however it is computed
+		byte[] data = "xx some data".getBytes("UTF-8");
+		assertArrayEquals(SIGNER.sign("some data"), SIGNER.sign(data, 3, data.length-3));
+		// a different key gives a different signature
+		assertFalse(HmacSigner.fromBase64EncodedKey(ALGORITHM, "YmFyZm9v").verifyBase64("some data", signature));
+	}
+
+	@Test
+	public void testTamperedSignatureIsRejected() throws Exception {
+		String signature = new String(SIGNER.signBase64("some data"), "US-ASCII");
+		assertFalse(SIGNER.verifyBase64("some datA", signature));
+		String tampered = (signature.charAt(0)=='A' ? "B" : "A")+signature.substring(1);
+		assertFalse(SIGNER.verifyBase64("some data", tampered));
+		assertFalse(SIGNER.verifyBase64("some data", signature.substring(1)));
+		assertFalse(SIGNER.verifyBase64("some data", null));
+	}
+
+	@Test
+	public void testConcurrentUse() throws Exception {
+		final int count = 1000;
+		final List<String> expected = new ArrayList<String>();
+		for (int i=0; i<count; i++) expected.add(new String(SIGNER.signBase64("data "+i), "US-ASCII"));
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int t=0; t<8; t++) {
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int verified = 0;
+						for (int i=0; i<count; i++) {
+							if (SIGNER.verifyBase64("data "+i, expected.get(i))) verified++;
+						}
+						return verified;
+					}}));
+			}
+			for (Future<Integer> future : futures) assertEquals(count, future.get().intValue());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
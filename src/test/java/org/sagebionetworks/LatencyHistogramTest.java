@@ -0,0 +1,44 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketsCoverEveryValue() {
+		// every value falls in a bucket whose range includes it
+		for (long v : new long[] {0L, 1L, 63L, 64L, 65L, 127L, 128L, 1000L, 123456789L, Long.MAX_VALUE}) {
+			int index = LatencyHistogram.bucketIndex(v);
+			assertTrue(LatencyHistogram.highestValueInBucket(index)>=v);
+			if (index>0) assertTrue(LatencyHistogram.highestValueInBucket(index-1)<v);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0L, h.getValueAtPercentile(50));
+		for (long v=1; v<=1000; v++) h.record(v);
+		assertEquals(1000L, h.getCount());
+		assertEquals(1000L, h.getMax());
+		assertWithin(500L, h.getValueAtPercentile(50));
+		assertWithin(900L, h.getValueAtPercentile(90));
+		assertWithin(990L, h.getValueAtPercentile(99));
+		assertEquals(1000L, h.getValueAtPercentile(100));
+		// small values are exact
+		h = new LatencyHistogram();
+		h.record(3L);
+		h.record(7L);
+		assertEquals(3L, h.getValueAtPercentile(50));
+		assertEquals(7L, h.getValueAtPercentile(99));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("expected about "+expected+" but was "+actual,
+				actual>=expected && actual<=expected+expected/32);
+	}
+
+}
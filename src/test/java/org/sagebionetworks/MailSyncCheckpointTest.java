@@ -0,0 +1,41 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class MailSyncCheckpointTest {
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		File file = File.createTempFile("checkpoint", ".properties");
+		file.delete();
+		try {
+			MailSyncCheckpoint checkpoint = new MailSyncCheckpoint(file);
+			checkpoint.load();
+			assertEquals(0L, checkpoint.getLastUid("INBOX", 1L));
+			checkpoint.setLastUid("INBOX", 1L, 101L);
+			checkpoint.save();
+			
+			MailSyncCheckpoint reloaded = new MailSyncCheckpoint(file);
+			reloaded.load();
+			assertEquals(101L, reloaded.getLastUid("INBOX", 1L));
+			assertEquals(0L, reloaded.getLastUid("other", 1L));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testUidValidityChange() throws Exception {
+		MailSyncCheckpoint checkpoint = new MailSyncCheckpoint(null);
+		checkpoint.setLastUid("INBOX", 1L, 101L);
+		// UIDs from a previous UIDVALIDITY mean nothing
+		assertEquals(0L, checkpoint.getLastUid("INBOX", 2L));
+		// saving without a file is a no-op
+		checkpoint.save();
+	}
+
+}
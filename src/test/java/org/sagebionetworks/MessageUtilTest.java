@@ -2,9 +2,16 @@ package org.sagebionetworks;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -13,8 +20,12 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.http.entity.ContentType;
 import org.junit.Test;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.repo.model.FileEntity;
+import org.sagebionetworks.repo.model.UserProfile;
 
 public class MessageUtilTest {
 
@@ -61,4 +72,40 @@ public class MessageUtilTest {
 		createAndPrintMultiPartMIMEMessage(sb.toString());
 	}
 
+	private static File createTemplateFile(String content) throws IOException {
+		File file = File.createTempFile("template", ".txt");
+		file.deleteOnExit();
+		OutputStream os = new FileOutputStream(file);
+		try {
+			IOUtils.write(content, os);
+		} finally {
+			os.close();
+		}
+		return file;
+	}
+	
+	@Test
+	public void testCreateGenericMessageCachesTemplate() throws Exception {
+		SynapseClient synapseClient = mock(SynapseClient.class);
+		FileEntity template = new FileEntity();
+		template.setId("syn101");
+		template.setVersionNumber(1L);
+		template.setEtag("etag-1");
+		when(synapseClient.getEntityById("syn101")).thenReturn(template);
+		File v1 = createTemplateFile("version one");
+		when(synapseClient.getFileEntityTemporaryUrlForVersion("syn101", 1L)).thenReturn(v1.toURI().toURL());
+		UserProfile userProfile = new UserProfile();
+		userProfile.setFirstName("fname");
+		userProfile.setLastName("lname");
+		
+		MessageUtil messageUtil = new MessageUtil(synapseClient);
+		
+		// method under test
+		assertEquals("Dear fname lname:\n\nversion one", messageUtil.createGenericMessage(userProfile, "syn101"));
+		assertEquals("Dear fname lname:\n\nversion one", messageUtil.createGenericMessage(userProfile, "syn101"));
+		
+		// the template is only downloaded once
+		verify(synapseClient, times(1)).getFileEntityTemporaryUrlForVersion("syn101", 1L);
+	}
+
 }
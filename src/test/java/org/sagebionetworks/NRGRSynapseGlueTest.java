@@ -3,11 +3,15 @@ package org.sagebionetworks;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -22,9 +26,9 @@ import static org.sagebionetworks.Util.getProperty;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -38,22 +42,27 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.mail.Address;
-import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeMessage;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseServerException;
 import org.sagebionetworks.evaluation.model.Submission;
 import org.sagebionetworks.evaluation.model.SubmissionBundle;
 import org.sagebionetworks.evaluation.model.SubmissionStatus;
 import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
 import org.sagebionetworks.reflection.model.PaginatedResults;
+import org.sagebionetworks.repo.model.AccessApproval;
 import org.sagebionetworks.repo.model.MembershipRequest;
 import org.sagebionetworks.repo.model.UserProfile;
 import org.sagebionetworks.repo.model.annotation.StringAnnotation;
@@ -81,6 +90,8 @@ public class NRGRSynapseGlueTest  {
 	
 	NRGRSynapseGlue nrgrSynapseGlue;
 	
+	private File outboundMailQueueDirectory;
+	
 	private static final String USER_ID = "111";
 	private static final String TEAM_ID = "3324934"; // taken from the configuration
 	private static final String TEAM_2_ID = "3334673"; // taken from the configuration
@@ -94,7 +105,9 @@ public class NRGRSynapseGlueTest  {
 	
 	@Before
 	public void setUp() throws Exception {
-		nrgrSynapseGlue = new NRGRSynapseGlue(synapseClient, messageUtil, tableUtil, evaluationUtil, imapClient);
+		// don't share a queue with real runs
+		outboundMailQueueDirectory = Files.createTempDirectory("outbound-mail").toFile();
+		nrgrSynapseGlue = new NRGRSynapseGlue(synapseClient, messageUtil, tableUtil, evaluationUtil, imapClient, outboundMailQueueDirectory);
 
 		submissionsToProcess = new ArrayList<SubmissionBundle>();
 		SubmissionBundle bundle = new SubmissionBundle();
@@ -116,6 +129,11 @@ public class NRGRSynapseGlueTest  {
 		System.setProperty("TABLE_ID", "202");
 	}
 	
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(outboundMailQueueDirectory);
+	}
+	
 	private static PaginatedResults<MembershipRequest> createSingletonMembershipRequestList(String teamId, String userId) {
 		PaginatedResults<MembershipRequest> pgs = new PaginatedResults<MembershipRequest>();
 		List<MembershipRequest> results = new ArrayList<MembershipRequest>();
@@ -203,28 +221,63 @@ public class NRGRSynapseGlueTest  {
 		assertEquals(""+EXPIRES_ON, values.get(6));
 	}
 	
-	private static File createTempFileWithContent(String content) {
-		try {
-			File file = File.createTempFile("temp", ".txt");
-			FileOutputStream fos = new FileOutputStream(file);
-			try {
-				IOUtils.write(content, fos, "utf-8");
-				return file;
-			} finally {
-				fos.close();
+	@Test
+	public void testProcessNewApplicantsConcurrently() throws Exception {
+		String[] userIds = new String[] {"111", "222", "333", "444"};
+		{
+			PaginatedResults<MembershipRequest> pgs = new PaginatedResults<MembershipRequest>();
+			List<MembershipRequest> results = new ArrayList<MembershipRequest>();
+			for (String userId : userIds) {
+				results.addAll(createSingletonMembershipRequestList(TEAM_ID, userId).getResults());
+				UserProfile userProfile = new UserProfile();
+				userProfile.setOwnerId(userId);
+				userProfile.setUserName("uname"+userId);
+				when(synapseClient.getUserProfile(userId)).thenReturn(userProfile);
 			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			pgs.setResults(results);
+			pgs.setTotalNumberOfResults(results.size());
+			when(synapseClient.getOpenMembershipRequests(eq(TEAM_ID), (String)isNull(), anyLong(), anyLong())).
+				thenReturn(pgs);
+			when(tableUtil.getNewMembershipRequests(pgs.getResults())).thenReturn(pgs.getResults());
+		}
+		{
+			PaginatedResults<MembershipRequest> pgs = new PaginatedResults<MembershipRequest>();
+			pgs.setResults(Collections.EMPTY_LIST);
+			pgs.setTotalNumberOfResults(0);
+			when(synapseClient.getOpenMembershipRequests(eq(TEAM_2_ID), (String)isNull(), anyLong(), anyLong())).
+				thenReturn(pgs);
+		}
+		when(messageUtil.createGenericMessage((UserProfile)any(), anyString())).thenReturn("a message");
+		
+		System.setProperty("NEW_APPLICANT_THREAD_COUNT", "3");
+		try {
+			// the call under test:
+			nrgrSynapseGlue.processNewApplicants();
+		} finally {
+			System.clearProperty("NEW_APPLICANT_THREAD_COUNT");
+		}
+		
+		verify(messageUtil, times(userIds.length)).sendMessage((MessageToUser)any(), anyString());
+		
+		// all applicants are recorded in a single update, in the order of the membership requests
+		ArgumentCaptor<RowSet> captureRowSet = ArgumentCaptor.forClass(RowSet.class);
+		verify(synapseClient, times(1)).
+			appendRowsToTable(captureRowSet.capture(), eq(100000L), eq(getProperty("TABLE_ID")));
+		List<Row> rows = captureRowSet.getValue().getRows();
+		assertEquals(userIds.length, rows.size());
+		for (int i=0; i<userIds.length; i++) {
+			assertEquals(userIds[i], rows.get(i).getValues().get(0));
+			assertEquals("uname"+userIds[i], rows.get(i).getValues().get(2));
 		}
 	}
 	
-	private static File createMessageWithToken(String token) throws IOException {
+	private static byte[] createMessageWithToken(String token) throws IOException {
 		String templateName = "mimeWithTokenPlaceholder.txt";
 		InputStream is = null;
 		try {
 			is = NRGRSynapseGlueTest.class.getClassLoader().getResourceAsStream(templateName);
 			String template = IOUtils.toString(is);
-			return createTempFileWithContent(template.replaceAll("###tokenGoesHere###", token));
+			return template.replaceAll("###tokenGoesHere###", token).getBytes("utf-8");
 		} finally {
 			if (is!=null) is.close();
 		}
@@ -261,8 +314,8 @@ public class NRGRSynapseGlueTest  {
 		DatasetSettings datasetSettings = createDatasetSettings(TEAM_ID, "foo", null);
 		long now = System.currentTimeMillis();
 		String token = TokenUtil.createToken(USER_ID, now, datasetSettings, now+1000L);
-		File downloadedFile = createMessageWithToken(token);
-		when(evaluationUtil.downloadSubmissionFile(submission)).thenReturn(downloadedFile);
+		byte[] downloadedContent = createMessageWithToken(token);
+		when(evaluationUtil.downloadSubmissionContent(submission)).thenReturn(downloadedContent);
 		
 		{
 			PaginatedResults<MembershipRequest> pgs = createSingletonMembershipRequestList(TEAM_ID, USER_ID);
@@ -284,8 +337,8 @@ public class NRGRSynapseGlueTest  {
 	
 	@Test
 	public void testProcessReceivedSubmissions_MissingToken() throws Exception {
-		File downloadedFile = createMessageWithToken("NOT A VALID TOKEN");
-		when(evaluationUtil.downloadSubmissionFile(submission)).thenReturn(downloadedFile);
+		byte[] downloadedContent = createMessageWithToken("NOT A VALID TOKEN");
+		when(evaluationUtil.downloadSubmissionContent(submission)).thenReturn(downloadedContent);
 
 		// method under test
 		SubmissionProcessingResult spr = nrgrSynapseGlue.processReceivedSubmissions(submissionsToProcess, createDatasetSettingsMap());
@@ -308,8 +361,8 @@ public class NRGRSynapseGlueTest  {
 		DatasetSettings datasetSettings = createDatasetSettings(TEAM_ID, "foo", "140.70.0.0/16");
 		long now = System.currentTimeMillis();
 		String token = TokenUtil.createToken(USER_ID, now, datasetSettings, now+1000L);
-		File downloadedFile = createMessageWithToken(token);
-		when(evaluationUtil.downloadSubmissionFile(submission)).thenReturn(downloadedFile);
+		byte[] downloadedContent = createMessageWithToken(token);
+		when(evaluationUtil.downloadSubmissionContent(submission)).thenReturn(downloadedContent);
 		Map<String,DatasetSettings> dsMap = new HashMap<String,DatasetSettings>();
 		dsMap.put(datasetSettings.getApplicationTeamId(), datasetSettings);
 		
@@ -342,8 +395,8 @@ public class NRGRSynapseGlueTest  {
 		String validToken = TokenUtil.createToken(USER_ID, now, datasetSettings, now+1000L);
 		long tokenExpiration = datasetSettings.getTokenExpirationTimeDays()*MILLISEC_PER_DAY;
 		String outdatedToken = TokenUtil.createToken(USER_ID, now-tokenExpiration-1000L, datasetSettings, now+1000L);
-		File downloadedFile = createMessageWithToken(validToken+"\n"+outdatedToken);
-		when(evaluationUtil.downloadSubmissionFile(submission)).thenReturn(downloadedFile);
+		byte[] downloadedContent = createMessageWithToken(validToken+"\n"+outdatedToken);
+		when(evaluationUtil.downloadSubmissionContent(submission)).thenReturn(downloadedContent);
 		
 		{
 			PaginatedResults<MembershipRequest> pgs = createSingletonMembershipRequestList(TEAM_ID, USER_ID);
@@ -369,6 +422,141 @@ public class NRGRSynapseGlueTest  {
 		
 	}
 	
+	@Test
+	public void testApproveApplicantsWithPartialFailure() throws Exception {
+		String otherUserId = "222";
+		long now = System.currentTimeMillis();
+		List<SelectColumn> columns = new ArrayList<SelectColumn>();
+		columns.add(createColumn(TableUtil.USER_ID, 0));
+		columns.add(createColumn(APPLICATION_TEAM_ID, 1));
+		columns.add(createColumn(APPROVED_ON, 2));
+		RowSet rowSet = new RowSet();
+		rowSet.setHeaders(columns);
+		rowSet.setRows(new ArrayList<Row>());
+		TokenTableLookupResults ttlr = new TokenTableLookupResults();
+		for (String userId : new String[] {USER_ID, otherUserId}) {
+			Row row = new Row();
+			row.setValues(Arrays.asList(new String[]{userId, TEAM_ID, null}));
+			rowSet.getRows().add(row);
+			ttlr.addToken(new TokenContent(Long.parseLong(userId), Collections.singletonList(999L), new Date(now), "foo", TEAM_ID, null));
+		}
+		ttlr.setRowSet(rowSet);
+		when(tableUtil.getRowsForAcceptedButNotYetApprovedUserIds((Collection<TokenContent>)any())).thenReturn(ttlr);
+		doThrow(new SynapseServerException("team unavailable")).when(synapseClient).
+			addTeamMember(TEAM_ID, otherUserId, "https://www.synapse.org/#!Team:", null);
+		
+		// method under test
+		try {
+			nrgrSynapseGlue.approveApplicants(ttlr.getTokens(), createDatasetSettingsMap());
+			fail("Exception expected");
+		} catch (RuntimeException e) {
+			assertEquals("Failed to approve 1 user(s).", e.getMessage());
+		}
+		
+		// both users' approvals were attempted, despite the failure
+		verify(synapseClient, times(2)).createAccessApproval((AccessApproval)any());
+		verify(synapseClient).addTeamMember(TEAM_ID, USER_ID, "https://www.synapse.org/#!Team:", null);
+		// only the successful user is recorded as approved
+		ArgumentCaptor<RowSet> captureRowSet = ArgumentCaptor.forClass(RowSet.class);
+		verify(synapseClient).appendRowsToTable(captureRowSet.capture(), eq(TableUtil.TABLE_UPDATE_TIMEOUT), anyString());
+		List<Row> appendedRows = captureRowSet.getValue().getRows();
+		assertEquals(1, appendedRows.size());
+		assertEquals(USER_ID, appendedRows.get(0).getValues().get(0));
+	}
+	
+	@Test
+	public void testRemoveExpiredAccessInChunks() throws Exception {
+		DatasetSettings ds = createDatasetSettings();
+		ds.setExpiresAfterDays(365);
+		ds.setRevocationEmailSynapseId("syn303");
+		final List<SelectColumn> columns = new ArrayList<SelectColumn>();
+		columns.add(createColumn(TableUtil.USER_ID, 0));
+		columns.add(createColumn(TableUtil.DATE_REVOKED, 1));
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				RowHandler rowHandler = (RowHandler)invocation.getArguments()[1];
+				for (String userId : new String[] {"101", "102", "103"}) {
+					Row row = new Row();
+					row.setValues(Arrays.asList(new String[]{userId, null}));
+					rowHandler.handleRow(columns, row);
+				}
+				return null;
+			}}).when(tableUtil).getExpiredAccess(eq(ds), (RowHandler)any());
+		doThrow(new SynapseServerException("team unavailable")).when(synapseClient).removeTeamMember(TEAM_ID, "102");
+		
+		System.setProperty("REVOCATION_CHUNK_SIZE", "2");
+		try {
+			// method under test
+			nrgrSynapseGlue.removeExpiredAccess(Collections.singletonMap(TEAM_ID, ds));
+			fail("Exception expected");
+		} catch (RuntimeException e) {
+			assertEquals("Failed to revoke access for 1 user(s).", e.getMessage());
+		} finally {
+			System.clearProperty("REVOCATION_CHUNK_SIZE");
+		}
+		
+		verify(synapseClient, times(3)).revokeAccessApprovals(eq("999"), anyString());
+		verify(synapseClient, times(3)).removeTeamMember(eq(TEAM_ID), anyString());
+		// the table is updated once per chunk, omitting the user who failed
+		ArgumentCaptor<RowSet> captureRowSet = ArgumentCaptor.forClass(RowSet.class);
+		verify(synapseClient, times(2)).appendRowsToTable(captureRowSet.capture(), eq(TableUtil.TABLE_UPDATE_TIMEOUT), anyString());
+		List<RowSet> rowSets = captureRowSet.getAllValues();
+		assertEquals(1, rowSets.get(0).getRows().size());
+		assertEquals("101", rowSets.get(0).getRows().get(0).getValues().get(0));
+		assertNotNull(rowSets.get(0).getRows().get(0).getValues().get(1));
+		assertEquals(1, rowSets.get(1).getRows().size());
+		assertEquals("103", rowSets.get(1).getRows().get(0).getValues().get(0));
+	}
+	
+	@Test
+	public void testProcessReceivedSubmissionsConcurrently() throws Exception {
+		DatasetSettings datasetSettings = createDatasetSettings(TEAM_ID, "foo", null);
+		long now = System.currentTimeMillis();
+		String token = TokenUtil.createToken(USER_ID, now, datasetSettings, now+1000L);
+		when(evaluationUtil.downloadSubmissionContent(submission)).thenReturn(createMessageWithToken(token));
+		
+		{
+			PaginatedResults<MembershipRequest> pgs = createSingletonMembershipRequestList(TEAM_ID, USER_ID);
+			when(synapseClient.getOpenMembershipRequests(eq(TEAM_ID),eq(USER_ID), anyLong(), anyLong())).
+				thenReturn(pgs);
+		}
+		
+		// add two more submissions, the first of which lacks a token
+		List<SubmissionStatus> expectedStatuses = new ArrayList<SubmissionStatus>();
+		expectedStatuses.add(submissionStatus);
+		for (String content : new String[] {"NOT A VALID TOKEN", token}) {
+			SubmissionBundle bundle = new SubmissionBundle();
+			Submission sub = new Submission();
+			sub.setId(""+submissionsToProcess.size());
+			sub.setUserId("000");
+			SubmissionStatus status = new SubmissionStatus();
+			bundle.setSubmission(sub);
+			bundle.setSubmissionStatus(status);
+			submissionsToProcess.add(bundle);
+			expectedStatuses.add(status);
+			when(evaluationUtil.downloadSubmissionContent(sub)).thenReturn(createMessageWithToken(content));
+		}
+		
+		System.setProperty("SUBMISSION_PROCESSING_THREAD_COUNT", "3");
+		SubmissionProcessingResult spr;
+		try {
+			// method under test
+			spr = nrgrSynapseGlue.processReceivedSubmissions(submissionsToProcess, createDatasetSettingsMap());
+		} finally {
+			System.clearProperty("SUBMISSION_PROCESSING_THREAD_COUNT");
+		}
+		
+		// results are merged in the order of the submissions
+		assertEquals(expectedStatuses, spr.getProcessedSubmissions());
+		assertEquals(SubmissionStatusEnum.CLOSED, expectedStatuses.get(0).getStatus());
+		assertEquals(SubmissionStatusEnum.REJECTED, expectedStatuses.get(1).getStatus());
+		assertEquals(SubmissionStatusEnum.CLOSED, expectedStatuses.get(2).getStatus());
+		assertEquals(Collections.singleton(TokenUtil.parseToken(token).getTokenContent()), spr.getValidTokens());
+		assertEquals(1, spr.getMessagesToSender().size());
+		assertEquals("No valid token found in file.", spr.getMessagesToSender().get(0).getReason());
+	}
+	
 	@Test
 	public void testApproveApplicants() throws Exception {
 		when(evaluationUtil.getReceivedSubmissions(anyString())).thenReturn(submissionsToProcess);
@@ -378,8 +566,8 @@ public class NRGRSynapseGlueTest  {
 		String validToken = TokenUtil.createToken(USER_ID, now, datasetSettings, now+1000L);
 		long tokenExpiration = datasetSettings.getTokenExpirationTimeDays()*MILLISEC_PER_DAY;
 		String outdatedToken = TokenUtil.createToken(USER_ID, now-tokenExpiration-1000L, datasetSettings, now+1000L);
-		File downloadedFile = createMessageWithToken(validToken+"\n"+outdatedToken);
-		when(evaluationUtil.downloadSubmissionFile(submission)).thenReturn(downloadedFile);
+		byte[] downloadedContent = createMessageWithToken(validToken+"\n"+outdatedToken);
+		when(evaluationUtil.downloadSubmissionContent(submission)).thenReturn(downloadedContent);
 		
 		TokenTableLookupResults ttlr = new TokenTableLookupResults();
 		RowSet rowSet = new RowSet();
@@ -415,12 +603,12 @@ public class NRGRSynapseGlueTest  {
 		nrgrSynapseGlue.approveApplicantsBatch(dsMap);
 		
 		// check results
-		ArgumentCaptor<MimeMultipart> captureMimeMultipart = ArgumentCaptor
-				.forClass(MimeMultipart.class);
-		verify(imapClient, times(1)).
-			sendMessage((Address)any(), (Address[])any(), anyString(), captureMimeMultipart.capture());
+		// the rejection is sent in the background
+		ArgumentCaptor<MimeMessage> captureMimeMessage = ArgumentCaptor
+				.forClass(MimeMessage.class);
+		verify(imapClient, timeout(10000)).sendMessage(captureMimeMessage.capture());
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		captureMimeMultipart.getValue().writeTo(baos);
+		captureMimeMessage.getValue().writeTo(baos);
 		assertTrue(baos.toString(), baos.toString().indexOf("1 valid token(s) and 1 invalid token(s) were found in this message.")>0);
 		
 		String tableId = getProperty("TABLE_ID");
@@ -432,6 +620,80 @@ public class NRGRSynapseGlueTest  {
 		assertEquals(rows, appendedRows);
 	}
 	
+	@Test
+	public void testApprovalFailureDoesNotHoldUpOthers() throws Exception {
+		String otherUserId = "222";
+		DatasetSettings datasetSettings = createDatasetSettings(TEAM_ID, "foo", null);
+		datasetSettings.setExpiresAfterDays(365);
+		datasetSettings.setRevocationEmailSynapseId("syn303");
+		Map<String,DatasetSettings> dsMap = Collections.singletonMap(TEAM_ID, datasetSettings);
+		long now = System.currentTimeMillis();
+		
+		// one submission per user
+		List<SubmissionStatus> statuses = new ArrayList<SubmissionStatus>();
+		submissionsToProcess.clear();
+		List<SelectColumn> columns = new ArrayList<SelectColumn>();
+		columns.add(createColumn(TableUtil.USER_ID, 0));
+		columns.add(createColumn(APPLICATION_TEAM_ID, 1));
+		columns.add(createColumn(APPROVED_ON, 2));
+		RowSet rowSet = new RowSet();
+		rowSet.setHeaders(columns);
+		rowSet.setRows(new ArrayList<Row>());
+		TokenTableLookupResults ttlr = new TokenTableLookupResults();
+		for (String userId : new String[] {USER_ID, otherUserId}) {
+			SubmissionBundle bundle = new SubmissionBundle();
+			Submission sub = new Submission();
+			sub.setId(userId);
+			sub.setUserId("000");
+			SubmissionStatus status = new SubmissionStatus();
+			status.setId(userId);
+			bundle.setSubmission(sub);
+			bundle.setSubmissionStatus(status);
+			submissionsToProcess.add(bundle);
+			statuses.add(status);
+			String token = TokenUtil.createToken(userId, now, datasetSettings, now+1000L);
+			when(evaluationUtil.downloadSubmissionContent(sub)).thenReturn(createMessageWithToken(token));
+			when(synapseClient.getOpenMembershipRequests(eq(TEAM_ID), eq(userId), anyLong(), anyLong())).
+				thenReturn(createSingletonMembershipRequestList(TEAM_ID, userId));
+			Row row = new Row();
+			row.setValues(Arrays.asList(new String[]{userId, TEAM_ID, null}));
+			rowSet.getRows().add(row);
+			ttlr.addToken(TokenUtil.parseToken(token).getTokenContent());
+		}
+		ttlr.setRowSet(rowSet);
+		when(evaluationUtil.getReceivedSubmissions(anyString())).thenReturn(submissionsToProcess);
+		when(tableUtil.getRowsForAcceptedButNotYetApprovedUserIds((Collection<TokenContent>)any())).thenReturn(ttlr);
+		doThrow(new SynapseServerException("team unavailable")).when(synapseClient).
+			addTeamMember(TEAM_ID, otherUserId, "https://www.synapse.org/#!Team:", null);
+		
+		// an earlier approval has expired
+		final List<SelectColumn> expiredColumns = new ArrayList<SelectColumn>();
+		expiredColumns.add(createColumn(TableUtil.USER_ID, 0));
+		expiredColumns.add(createColumn(TableUtil.DATE_REVOKED, 1));
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				Row row = new Row();
+				row.setValues(Arrays.asList(new String[]{"333", null}));
+				((RowHandler)invocation.getArguments()[1]).handleRow(expiredColumns, row);
+				return null;
+			}}).when(tableUtil).getExpiredAccess(eq(datasetSettings), (RowHandler)any());
+		
+		// method under test
+		try {
+			nrgrSynapseGlue.approveApplicantsAndRemoveExpiredAccess(dsMap);
+			fail("Exception expected");
+		} catch (RuntimeException e) {
+			assertEquals("Failed to approve 1 user(s).", e.getMessage());
+		}
+		
+		// the other user's submission is closed, the failed one's is left to be processed again
+		verify(evaluationUtil).updateSubmissionStatusBatch(Collections.singletonList(statuses.get(0)), "101");
+		// and expired access is still revoked
+		verify(synapseClient).revokeAccessApprovals("999", "333");
+		verify(synapseClient).removeTeamMember(TEAM_ID, "333");
+	}
+	
 	public static SelectColumn createColumn(String name, int id) {
 		SelectColumn c = new SelectColumn();
 		c.setName(name);
@@ -0,0 +1,143 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutboundMailQueueTest {
+	
+	private File directory;
+	private IMAPClient mailClient;
+	private long now;
+	private OutboundMailQueue queue;
+	
+	@Before
+	public void before() throws Exception {
+		directory = Files.createTempDirectory("queue-test").toFile();
+		mailClient = mock(IMAPClient.class);
+		now = 1000000L;
+		queue = new OutboundMailQueue(directory, mailClient, 2) {
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+		// stop the worker so that the test can drain the queue itself
+		queue.shutdown(0L);
+	}
+	
+	@After
+	public void after() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+	
+	private MimeMessage createMessage() throws Exception {
+		MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+		message.setFrom(new InternetAddress("noreply@sagebase.org"));
+		message.setRecipients(Message.RecipientType.TO, "foo@bar.com");
+		message.setSubject("subject");
+		message.setText("some text");
+		message.saveChanges();
+		return message;
+	}
+	
+	private int queuedCount() {
+		return directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".eml");
+			}}).length;
+	}
+
+	@Test
+	public void testSendWithRetry() throws Exception {
+		queue.enqueue(createMessage());
+		assertEquals(1, queuedCount());
+		
+		doThrow(new MessagingException("unavailable")).doNothing().when(mailClient).sendMessage(any(MimeMessage.class));
+		queue.drain();
+		// the message is kept, to be retried later
+		assertEquals(1, queuedCount());
+		
+		// not yet due
+		queue.drain();
+		verify(mailClient, times(1)).sendMessage(any(MimeMessage.class));
+		
+		now += 2*60*1000L;
+		queue.drain();
+		verify(mailClient, times(2)).sendMessage(any(MimeMessage.class));
+		assertEquals(0, queuedCount());
+	}
+
+	@Test
+	public void testSendMessagesFromEarlierRun() throws Exception {
+		queue.enqueue(createMessage());
+		queue.enqueue(createMessage());
+		assertEquals(2, queuedCount());
+		
+		// a later run sends the messages as soon as it starts...
+		OutboundMailQueue nextRun = new OutboundMailQueue(directory, mailClient, 2);
+		nextRun.start();
+		verify(mailClient, timeout(10000).times(2)).sendMessage(any(MimeMessage.class));
+		nextRun.shutdown(10000L);
+		assertEquals(0, queuedCount());
+		
+		// ...or, if it's never started, when it shuts down
+		queue.enqueue(createMessage());
+		nextRun = new OutboundMailQueue(directory, mailClient, 2);
+		nextRun.shutdown(0L);
+		verify(mailClient, times(3)).sendMessage(any(MimeMessage.class));
+		assertEquals(0, queuedCount());
+	}
+
+	@Test
+	public void testDeadLetter() throws Exception {
+		queue.enqueue(createMessage());
+		doThrow(new MessagingException("rejected")).when(mailClient).sendMessage(any(MimeMessage.class));
+		queue.drain();
+		now += 2*60*1000L;
+		queue.drain();
+		verify(mailClient, times(2)).sendMessage(any(MimeMessage.class));
+		assertEquals(0, queuedCount());
+		assertEquals(1, new File(directory, "dead").list().length);
+	}
+
+	@Test
+	public void testUnmovableMessageIsNotResent() throws Exception {
+		// a file in the way of the dead letter directory stops the message being moved there
+		FileUtils.touch(new File(directory, "dead"));
+		queue.enqueue(createMessage());
+		doThrow(new MessagingException("rejected")).when(mailClient).sendMessage(any(MimeMessage.class));
+		queue.drain();
+		now += 2*60*1000L;
+		queue.drain();
+		verify(mailClient, times(2)).sendMessage(any(MimeMessage.class));
+		assertEquals(1, queuedCount());
+		// it is left where it is, but not sent again
+		now += 60*60*1000L;
+		queue.drain();
+		queue.drain();
+		verify(mailClient, times(2)).sendMessage(any(MimeMessage.class));
+	}
+
+}
@@ -0,0 +1,120 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+public class SMTPTransportPoolTest {
+	
+	private long now;
+	private List<SMTPTransport> created;
+	private SMTPTransportPool pool;
+	private Message message;
+	private Address[] to;
+	
+	@Before
+	public void before() throws Exception {
+		now = 1000000L;
+		created = new ArrayList<SMTPTransport>();
+		pool = new SMTPTransportPool(1) {
+			@Override
+			protected SMTPTransport createTransport() {
+				SMTPTransport transport = mock(SMTPTransport.class);
+				created.add(transport);
+				return transport;
+			}
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+		message = new MimeMessage((Session)null);
+		to = new Address[] {new InternetAddress("foo@bar.com")};
+	}
+
+	@Test
+	public void testConnectionIsReused() throws Exception {
+		for (int i=0; i<10; i++) pool.sendMessage(message, to);
+		assertEquals(1, created.size());
+		verify(created.get(0), times(10)).sendMessage(message, to);
+		
+		pool.close();
+		verify(created.get(0)).close();
+	}
+
+	@Test
+	public void testReconnectAfterFailure() throws Exception {
+		pool.sendMessage(message, to);
+		// the server has dropped the connection
+		doThrow(new MessagingException("closed")).when(created.get(0)).sendMessage(message, to);
+		pool.sendMessage(message, to);
+		assertEquals(2, created.size());
+		verify(created.get(0)).close();
+		verify(created.get(1)).sendMessage(message, to);
+	}
+
+	@Test
+	public void testNoRetryWhenMessageIsRejected() throws Exception {
+		pool.sendMessage(message, to);
+		when(created.get(0).isConnected()).thenReturn(true);
+		doThrow(new SendFailedException("invalid address")).
+			doThrow(new MessagingException("message too large")).
+			doNothing().when(created.get(0)).sendMessage(message, to);
+		for (int i=0; i<2; i++) {
+			try {
+				pool.sendMessage(message, to);
+				fail("MessagingException expected");
+			} catch (MessagingException e) {
+				// as expected
+			}
+		}
+		// the connection is still good, so it's kept
+		pool.sendMessage(message, to);
+		assertEquals(1, created.size());
+		verify(created.get(0), times(4)).sendMessage(message, to);
+		verify(created.get(0), never()).close();
+	}
+
+	@Test
+	public void testReconnectAfterIOException() throws Exception {
+		pool.sendMessage(message, to);
+		when(created.get(0).isConnected()).thenReturn(true);
+		doThrow(new MessagingException("write failed", new IOException("broken pipe"))).
+			when(created.get(0)).sendMessage(message, to);
+		pool.sendMessage(message, to);
+		assertEquals(2, created.size());
+		verify(created.get(0)).close();
+	}
+
+	@Test
+	public void testOldConnectionIsReplaced() throws Exception {
+		pool.sendMessage(message, to);
+		now += 60*60*1000L;
+		pool.sendMessage(message, to);
+		assertEquals(2, created.size());
+		verify(created.get(0)).close();
+	}
+
+}
@@ -1,9 +1,22 @@
 package org.sagebionetworks;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.sagebionetworks.Util.getProperty;
 
+import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
@@ -12,10 +25,14 @@ import org.apache.http.entity.ContentType;
 import org.junit.After;
 import org.junit.Test;
 import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseServerException;
+import org.sagebionetworks.evaluation.model.Submission;
 import org.sagebionetworks.evaluation.model.Evaluation;
 import org.sagebionetworks.evaluation.model.SubmissionBundle;
+import org.sagebionetworks.repo.model.FileEntity;
 import org.sagebionetworks.repo.model.Project;
 import org.sagebionetworks.repo.model.auth.LoginRequest;
+import org.sagebionetworks.repo.model.file.S3FileHandle;
 
 public class SubmissionMessageHandlerTest {
 	private SynapseClient synapseClient;
@@ -55,6 +72,28 @@ public class SubmissionMessageHandlerTest {
 		
 	}
 	
+	@Test
+	public void testHandleMessageContents() throws Exception {
+		SynapseClient mockSynapseClient = mock(SynapseClient.class);
+		S3FileHandle fileHandle = new S3FileHandle();
+		fileHandle.setId("101");
+		when(mockSynapseClient.multipartUpload(any(InputStream.class), anyLong(), anyString(), anyString(), 
+				(Long)isNull(), anyBoolean(), anyBoolean())).
+			thenReturn(fileHandle).thenThrow(new SynapseServerException("upload failed"));
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId("syn102");
+		when(mockSynapseClient.createEntity(any(FileEntity.class))).thenReturn(fileEntity);
+		
+		SubmissionMessageHandler smh = new SubmissionMessageHandler(mockSynapseClient, "syn100", "9614000");
+		List<Exception> outcomes = smh.handleMessageContents(Arrays.asList(new byte[][] {
+			FILE_CONTENT.getBytes(), FILE_CONTENT.getBytes()}));
+		
+		assertEquals(2, outcomes.size());
+		assertNull(outcomes.get(0));
+		assertTrue(outcomes.get(1).getCause() instanceof SynapseServerException);
+		verify(mockSynapseClient, times(1)).createIndividualSubmission(any(Submission.class), anyString(), anyString(), (String)isNull());
+	}
+	
 	@Test
 	public void testSubmissionMesssageHandler() throws Exception {
 		if (StringUtils.isEmpty(getProperty("USERNAME", true))) return; // no properties
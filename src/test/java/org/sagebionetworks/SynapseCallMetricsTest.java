@@ -0,0 +1,61 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
+
+public class SynapseCallMetricsTest {
+
+	@After
+	public void tearDown() {
+		SynapseCallMetrics.reset();
+	}
+
+	@Test
+	public void testRecordAndSummarize() {
+		SynapseCallMetrics.record("getTeam(String)", 2000000L, null);
+		SynapseCallMetrics.recordRetry("getTeam(String)");
+		SynapseCallMetrics.recordRetry("getTeam(String)");
+		SynapseCallMetrics.record("getTeam(String)", 4000000L, new IllegalStateException());
+		SynapseCallMetrics.recordRetry("getTeam(String)");
+		SynapseCallMetrics.record("getTeam(String)", 3000000L, new IllegalStateException());
+		SynapseCallMetrics.record("getUserProfile(String)", 1000000L, null);
+
+		SynapseCallMetrics.MethodMetrics mm = SynapseCallMetrics.getMethodMetrics("getTeam(String)");
+		assertEquals(3L, mm.calls.get());
+		assertEquals(3L, mm.retries.get());
+		assertEquals(9000L, mm.totalMicros.get());
+		assertEquals(2L, mm.errors.get("IllegalStateException").get());
+		assertEquals(4000L, mm.latencyMicros.getMax());
+
+		String summary = SynapseCallMetrics.summarizeAndReset();
+		// the method which took the most time comes first
+		assertTrue(summary, summary.indexOf("getTeam(String)")<summary.indexOf("getUserProfile(String)"));
+		assertTrue(summary, summary.contains("{IllegalStateException=2}"));
+		assertEquals("", SynapseCallMetrics.summary());
+	}
+
+	@Test
+	public void testNotReadyIsNotAnError() {
+		SynapseCallMetrics.record("queryTableEntityBundleAsyncGet(String,String)", 1000000L, new SynapseResultNotReadyException());
+		SynapseCallMetrics.record("queryTableEntityBundleAsyncGet(String,String)", 1000000L, null);
+		SynapseCallMetrics.MethodMetrics mm = SynapseCallMetrics.getMethodMetrics("queryTableEntityBundleAsyncGet(String,String)");
+		assertEquals(2L, mm.calls.get());
+		assertEquals(1L, mm.notReady.get());
+		assertTrue(mm.errors.isEmpty());
+	}
+
+	@Test
+	public void testCallsAfterResetAreKept() {
+		SynapseCallMetrics.record("getTeam(String)", 1000000L, null);
+		assertTrue(SynapseCallMetrics.summarizeAndReset().contains("getTeam(String)"));
+		SynapseCallMetrics.record("getUserProfile(String)", 1000000L, null);
+		String summary = SynapseCallMetrics.summarizeAndReset();
+		assertTrue(summary, summary.contains("getUserProfile(String)"));
+		assertTrue(summary, !summary.contains("getTeam(String)"));
+	}
+
+}
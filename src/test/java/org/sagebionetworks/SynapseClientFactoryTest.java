@@ -0,0 +1,117 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+import org.sagebionetworks.client.exceptions.UnknownSynapseServerException;
+import org.sagebionetworks.repo.model.UserProfile;
+import org.sagebionetworks.repo.model.message.MessageToUser;
+
+public class SynapseClientFactoryTest {
+
+	@After
+	public void tearDown() {
+		SynapseCallMetrics.reset();
+	}
+
+	// every SynapseClient method called in src/main, with the policy it should have
+	private static final String[] LOCAL_METHODS = {"setBearerAuthorizationToken"};
+	private static final String[] IDEMPOTENT_METHODS = {
+		"login", "getMyProfile", "getUserProfile", "listUserProfiles", "getEntityById",
+		"getColumnModelsForTableEntity", "getOpenMembershipRequests", "getTeamMembershipStatus",
+		"getAllSubmissionBundlesByStatus", "getFileEntityTemporaryUrlForVersion",
+		"getFileTemporaryUrlForSubmissionFileHandle",
+		"queryTableEntityBundleAsyncStart", "queryTableEntityBundleAsyncGet",
+		"addTeamMember", "removeTeamMember", "revokeAccessApprovals"};
+	private static final String[] NOT_IDEMPOTENT_METHODS = {
+		"createAccessApproval", "createEntity", "createIndividualSubmission", "appendRowsToTable",
+		"multipartUpload", "sendMessage", "sendStringMessage", "updateSubmissionStatusBatch"};
+
+	@Test
+	public void testPolicies() {
+		for (String method : LOCAL_METHODS) {
+			assertEquals(method, SynapseCallPolicy.LOCAL, SynapseCallPolicy.forMethod(method));
+			assertTrue(method, SynapseCallPolicy.isListed(method));
+		}
+		for (String method : IDEMPOTENT_METHODS) {
+			assertEquals(method, SynapseCallPolicy.IDEMPOTENT, SynapseCallPolicy.forMethod(method));
+			assertTrue(method, SynapseCallPolicy.isListed(method));
+		}
+		for (String method : NOT_IDEMPOTENT_METHODS) {
+			assertEquals(method, SynapseCallPolicy.NOT_IDEMPOTENT, SynapseCallPolicy.forMethod(method));
+			assertTrue(method, SynapseCallPolicy.isListed(method));
+		}
+		// methods not in the table
+		assertEquals(SynapseCallPolicy.IDEMPOTENT, SynapseCallPolicy.forMethod("getTeam"));
+		assertEquals(SynapseCallPolicy.NOT_IDEMPOTENT, SynapseCallPolicy.forMethod("deleteTeam"));
+	}
+
+	@Test
+	public void testDispatcherIsResolvedOnce() throws Exception {
+		SynapseClientFactory.MethodDispatcher dispatcher = SynapseClientFactory.getDispatcher(
+				SynapseClient.class.getMethod("getMyProfile"));
+		assertSame(dispatcher, SynapseClientFactory.getDispatcher(SynapseClient.class.getMethod("getMyProfile")));
+		assertEquals(SynapseCallPolicy.IDEMPOTENT, dispatcher.getPolicy());
+		// metrics are kept per signature, so overloads are counted apart
+		assertEquals("getMyProfile()", dispatcher.getKey());
+		assertEquals("sendStringMessage(MessageToUser,String)", SynapseClientFactory.getDispatcher(
+				SynapseClient.class.getMethod("sendStringMessage", MessageToUser.class, String.class)).getKey());
+	}
+
+	@Test
+	public void testIdempotentCallIsRetried() throws Throwable {
+		SynapseClient synapseClient = mock(SynapseClient.class);
+		UserProfile profile = new UserProfile();
+		when(synapseClient.getMyProfile()).
+			thenThrow(new UnknownSynapseServerException(500, "transient")).
+			thenReturn(profile);
+
+		Object result = SynapseClientFactory.getDispatcher(SynapseClient.class.getMethod("getMyProfile")).
+				call(synapseClient, null);
+
+		assertSame(profile, result);
+		verify(synapseClient, times(2)).getMyProfile();
+		SynapseCallMetrics.MethodMetrics mm = SynapseCallMetrics.getMethodMetrics("getMyProfile()");
+		assertEquals(1L, mm.calls.get());
+		assertEquals(1L, mm.retries.get());
+		assertEquals(0, mm.errors.size());
+	}
+
+	@Test
+	public void testNonIdempotentCallIsRetriedOnlyWhenThrottled() throws Throwable {
+		SynapseClient synapseClient = mock(SynapseClient.class);
+		MessageToUser message = new MessageToUser();
+		SynapseClientFactory.MethodDispatcher dispatcher = SynapseClientFactory.getDispatcher(
+				SynapseClient.class.getMethod("sendStringMessage", MessageToUser.class, String.class));
+
+		// the server may have sent the message, so it is not sent again
+		when(synapseClient.sendStringMessage(message, "body")).
+			thenThrow(new UnknownSynapseServerException(500, "unknown outcome")).
+			thenReturn(message);
+		try {
+			dispatcher.call(synapseClient, new Object[] {message, "body"});
+			fail("Exception expected");
+		} catch (UnknownSynapseServerException e) {
+			// as expected
+		}
+		verify(synapseClient, times(1)).sendStringMessage(message, "body");
+
+		// the server declined to send it, so it is sent again
+		when(synapseClient.sendStringMessage(message, "other")).
+			thenThrow(new SynapseServiceUnavailable("busy")).
+			thenReturn(message);
+		assertSame(message, dispatcher.call(synapseClient, new Object[] {message, "other"}));
+		verify(synapseClient, times(2)).sendStringMessage(message, "other");
+	}
+
+}
@@ -15,13 +15,25 @@ import static org.sagebionetworks.TableUtil.USER_NAME;
 import static org.sagebionetworks.Util.getProperty;
 import static org.sagebionetworks.repo.model.table.ColumnType.INTEGER;
 import static org.sagebionetworks.repo.model.table.ColumnType.STRING;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -36,6 +48,8 @@ import org.sagebionetworks.repo.model.Project;
 import org.sagebionetworks.repo.model.auth.LoginRequest;
 import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.sagebionetworks.repo.model.table.ColumnType;
+import org.sagebionetworks.repo.model.table.QueryResult;
+import org.sagebionetworks.repo.model.table.QueryResultBundle;
 import org.sagebionetworks.repo.model.table.Row;
 import org.sagebionetworks.repo.model.table.RowSet;
 import org.sagebionetworks.repo.model.table.SelectColumn;
@@ -325,4 +339,196 @@ public class TableUtilTest {
 		assertEquals(new ArrayList<String>(), TableUtil.getSubnetsFromString(""));
 	}
 
+	private static QueryResultBundle createQueryResultBundle(List<SelectColumn> headers, Long count, Long maxRowsPerPage, String... userIds) {
+		List<Row> rows = new ArrayList<Row>();
+		for (String userId : userIds) {
+			Row row = new Row();
+			row.setValues(Collections.singletonList(userId));
+			rows.add(row);
+		}
+		RowSet rowSet = new RowSet();
+		rowSet.setHeaders(headers);
+		rowSet.setRows(rows);
+		QueryResult queryResult = new QueryResult();
+		queryResult.setQueryResults(rowSet);
+		QueryResultBundle qrb = new QueryResultBundle();
+		qrb.setQueryResult(queryResult);
+		qrb.setSelectColumns(headers);
+		qrb.setQueryCount(count);
+		qrb.setMaxRowsPerPage(maxRowsPerPage);
+		return qrb;
+	}
+
+	@Test
+	public void testExecuteQueryInPages() throws Exception {
+		SynapseClient mockClient = mock(SynapseClient.class);
+		SelectColumn sc = new SelectColumn();
+		sc.setName(USER_ID);
+		List<SelectColumn> headers = Collections.singletonList(sc);
+		String sql = "SELECT * FROM syn101";
+		String orderedSql = sql+" ORDER BY ROW_ID";
+		when(mockClient.queryTableEntityBundleAsyncStart(eq(orderedSql), eq(0L), (Long)eq(null), anyInt(), eq("syn101"))).thenReturn("token0");
+		when(mockClient.queryTableEntityBundleAsyncStart(eq(orderedSql), eq(2L), eq(2L), anyInt(), eq("syn101"))).thenReturn("token2");
+		when(mockClient.queryTableEntityBundleAsyncStart(eq(orderedSql), eq(4L), eq(2L), anyInt(), eq("syn101"))).thenReturn("token4");
+		when(mockClient.queryTableEntityBundleAsyncGet(eq("token0"), anyString())).thenReturn(createQueryResultBundle(headers, 5L, 2L, "1", "2"));
+		when(mockClient.queryTableEntityBundleAsyncGet(eq("token2"), anyString())).thenReturn(createQueryResultBundle(headers, null, null, "3", "4"));
+		when(mockClient.queryTableEntityBundleAsyncGet(eq("token4"), anyString())).thenReturn(createQueryResultBundle(headers, null, null, "5"));
+		
+		TableUtil pagingTableUtil = new TableUtil(mockClient, "syn101", "syn202");
+		final List<String> userIds = new ArrayList<String>();
+		pagingTableUtil.executeQuery(sql, "syn101", new RowHandler() {
+			public void handleRow(List<SelectColumn> headers, Row row) {
+				userIds.add(row.getValues().get(0));
+			}
+		});
+		assertEquals(Arrays.asList(new String[] {"1", "2", "3", "4", "5"}), userIds);
+	}
+
+	private static SelectColumn createSelectColumn(String name) {
+		SelectColumn sc = new SelectColumn();
+		sc.setName(name);
+		return sc;
+	}
+	
+	private static Row createApprovalRow(long rowId, long version, String userId, String teamId, String expiration, String approvedOn) {
+		Row row = new Row();
+		row.setRowId(rowId);
+		row.setVersionNumber(version);
+		row.setValues(new ArrayList<String>(Arrays.asList(new String[] {userId, teamId, expiration, approvedOn, null})));
+		return row;
+	}
+	
+	private static QueryResultBundle createQueryResultBundle(List<SelectColumn> headers, Row... rows) {
+		RowSet rowSet = new RowSet();
+		rowSet.setHeaders(headers);
+		rowSet.setRows(Arrays.asList(rows));
+		QueryResult queryResult = new QueryResult();
+		queryResult.setQueryResults(rowSet);
+		QueryResultBundle qrb = new QueryResultBundle();
+		qrb.setQueryResult(queryResult);
+		qrb.setSelectColumns(headers);
+		qrb.setQueryCount((long)rows.length);
+		qrb.setMaxRowsPerPage(100L);
+		return qrb;
+	}
+
+	@Test
+	public void testQueryReturningNoRows() throws Exception {
+		SynapseClient mockClient = mock(SynapseClient.class);
+		List<SelectColumn> headers = Arrays.asList(new SelectColumn[] {
+				createSelectColumn(USER_ID), createSelectColumn(MEMBERSHIP_REQUEST_EXPIRATION_DATE)});
+		when(mockClient.queryTableEntityBundleAsyncStart(anyString(), anyLong(), (Long)any(), anyInt(), eq("syn101"))).thenReturn("token");
+		when(mockClient.queryTableEntityBundleAsyncGet(eq("token"), anyString())).thenReturn(createQueryResultBundle(headers));
+		
+		TableUtil emptyTableUtil = new TableUtil(mockClient, "syn101", "syn202");
+		MembershipRequest mr = new MembershipRequest();
+		mr.setUserId("111");
+		mr.setTeamId("999");
+		mr.setExpiresOn(new Date());
+		// no user is in the table yet, so the request is new
+		List<MembershipRequest> newMRs = emptyTableUtil.getNewMembershipRequests(Collections.singletonList(mr));
+		assertEquals(Collections.singletonList(mr), newMRs);
+	}
+
+	@Test
+	public void testMatchRowsToTokens() throws Exception {
+		SynapseClient mockClient = mock(SynapseClient.class);
+		List<SelectColumn> headers = Arrays.asList(new SelectColumn[] {
+				createSelectColumn(USER_ID), createSelectColumn(APPLICATION_TEAM_ID), 
+				createSelectColumn(MEMBERSHIP_REQUEST_EXPIRATION_DATE), createSelectColumn(APPROVED_ON),
+				createSelectColumn(TableUtil.DATE_REVOKED)});
+		when(mockClient.queryTableEntityBundleAsyncStart(anyString(), anyLong(), (Long)any(), anyInt(), eq("syn101"))).thenReturn("token");
+		when(mockClient.queryTableEntityBundleAsyncGet(eq("token"), anyString())).thenReturn(createQueryResultBundle(headers,
+				// matched to the second, so the milliseconds don't matter
+				createApprovalRow(1L, 1L, "111", "999", "1500000000123", null),
+				// two rows with the same user, team and expiration
+				createApprovalRow(2L, 1L, "222", "999", "1500000000000", null),
+				createApprovalRow(3L, 1L, "222", "999", "1500000000000", null),
+				// a different team
+				createApprovalRow(4L, 1L, "333", "888", "1500000000000", null)));
+		
+		TableUtil mockTableUtil = new TableUtil(mockClient, "syn101", "syn202");
+		TokenContent match = new TokenContent(111L, Collections.EMPTY_LIST, new Date(), null, "999", new Date(1500000000999L));
+		TokenContent duplicate = new TokenContent(222L, Collections.EMPTY_LIST, new Date(), null, "999", new Date(1500000000000L));
+		TokenContent wrongTeam = new TokenContent(333L, Collections.EMPTY_LIST, new Date(), null, "999", new Date(1500000000000L));
+		TokenContent wrongTime = new TokenContent(111L, Collections.EMPTY_LIST, new Date(), null, "999", new Date(1500000001000L));
+		TokenTableLookupResults ttlr = mockTableUtil.getRowsForAcceptedButNotYetApprovedUserIds(
+				Arrays.asList(match, duplicate, wrongTeam, wrongTime));
+		
+		assertEquals(new HashSet<TokenContent>(Arrays.asList(match, duplicate)), ttlr.getTokens());
+		// every row matching a token is returned, in the order of the tokens
+		List<Long> rowIds = new ArrayList<Long>();
+		for (Row row : ttlr.getRowSet().getRows()) rowIds.add(row.getRowId());
+		assertEquals(Arrays.asList(new Long[] {1L, 2L, 3L}), rowIds);
+		
+		// the same index is used to find the membership requests not yet in the table
+		MembershipRequest processed = new MembershipRequest();
+		processed.setUserId("222");
+		processed.setTeamId("999");
+		processed.setExpiresOn(new Date(1500000000000L));
+		MembershipRequest unprocessed = new MembershipRequest();
+		unprocessed.setUserId("222");
+		unprocessed.setTeamId("999");
+		unprocessed.setExpiresOn(new Date(1500000002000L));
+		assertEquals(Collections.singletonList(unprocessed), 
+				mockTableUtil.getNewMembershipRequests(Arrays.asList(processed, unprocessed)));
+	}
+
+	@Test
+	public void testApprovalTableReplica() throws Exception {
+		SynapseClient mockClient = mock(SynapseClient.class);
+		List<SelectColumn> headers = Arrays.asList(new SelectColumn[] {
+				createSelectColumn(USER_ID), createSelectColumn(APPLICATION_TEAM_ID), 
+				createSelectColumn(MEMBERSHIP_REQUEST_EXPIRATION_DATE), createSelectColumn(APPROVED_ON),
+				createSelectColumn(TableUtil.DATE_REVOKED)});
+		String fullSql = "SELECT * FROM syn101 ORDER BY ROW_ID";
+		String deltaSql = "SELECT * FROM syn101 WHERE ROW_VERSION > 3 ORDER BY ROW_ID";
+		when(mockClient.queryTableEntityBundleAsyncStart(eq(fullSql), anyLong(), (Long)any(), anyInt(), eq("syn101"))).thenReturn("full");
+		when(mockClient.queryTableEntityBundleAsyncStart(eq(deltaSql), anyLong(), (Long)any(), anyInt(), eq("syn101"))).thenReturn("delta");
+		String emptyDeltaSql = "SELECT * FROM syn101 WHERE ROW_VERSION > 4 ORDER BY ROW_ID";
+		when(mockClient.queryTableEntityBundleAsyncStart(eq(emptyDeltaSql), anyLong(), (Long)any(), anyInt(), eq("syn101"))).thenReturn("emptyDelta");
+		when(mockClient.queryTableEntityBundleAsyncGet(eq("full"), anyString())).thenReturn(createQueryResultBundle(headers,
+				createApprovalRow(1L, 3L, "111", "999", null, null),
+				createApprovalRow(2L, 2L, "222", "999", null, "1000")));
+		// user 111 is approved after the first sync
+		when(mockClient.queryTableEntityBundleAsyncGet(eq("delta"), anyString())).thenReturn(createQueryResultBundle(headers,
+				createApprovalRow(1L, 4L, "111", "999", null, "2000")));
+		when(mockClient.queryTableEntityBundleAsyncGet(eq("emptyDelta"), anyString())).thenReturn(createQueryResultBundle(headers));
+		
+		File replicaFile = File.createTempFile("replica", ".json");
+		replicaFile.delete();
+		try {
+			TableUtil replicaTableUtil = new TableUtil(mockClient, "syn101", "syn202");
+			replicaTableUtil.setApprovalTableReplica(new ApprovalTableReplica(replicaFile));
+			TokenContent tc111 = new TokenContent(111L, Collections.EMPTY_LIST, new Date(), null, "999", null);
+			TokenContent tc222 = new TokenContent(222L, Collections.EMPTY_LIST, new Date(), null, "999", null);
+			TokenTableLookupResults ttlr = replicaTableUtil.getRowsForAcceptedButNotYetApprovedUserIds(Arrays.asList(tc111, tc222));
+			assertEquals(Collections.singleton(tc111), ttlr.getTokens());
+			verify(mockClient, never()).queryTableEntityBundleAsyncStart(eq(deltaSql), anyLong(), (Long)any(), anyInt(), anyString());
+			
+			// further lookups are answered from the replica without querying the table
+			ttlr = replicaTableUtil.getRowsForAcceptedButNotYetApprovedUserIds(Arrays.asList(tc111, tc222));
+			assertEquals(Collections.singleton(tc111), ttlr.getTokens());
+			verify(mockClient, never()).queryTableEntityBundleAsyncStart(eq(deltaSql), anyLong(), (Long)any(), anyInt(), anyString());
+			
+			// after an update the next lookup retrieves only the changes
+			replicaTableUtil.approvalTableUpdated();
+			ttlr = replicaTableUtil.getRowsForAcceptedButNotYetApprovedUserIds(Arrays.asList(tc111, tc222));
+			assertTrue(ttlr.getTokens().isEmpty());
+			verify(mockClient).queryTableEntityBundleAsyncStart(eq(deltaSql), anyLong(), (Long)any(), anyInt(), anyString());
+
+			// a new instance picks up the saved replica, including the changes, syncs it
+			// once, and finding no further changes doesn't cause it to be rebuilt
+			replicaTableUtil = new TableUtil(mockClient, "syn101", "syn202");
+			replicaTableUtil.setApprovalTableReplica(new ApprovalTableReplica(replicaFile));
+			ttlr = replicaTableUtil.getRowsForAcceptedButNotYetApprovedUserIds(Arrays.asList(tc111, tc222));
+			assertTrue(ttlr.getTokens().isEmpty());
+			ttlr = replicaTableUtil.getRowsForAcceptedButNotYetApprovedUserIds(Arrays.asList(tc111, tc222));
+			verify(mockClient, times(1)).queryTableEntityBundleAsyncStart(eq(fullSql), anyLong(), (Long)any(), anyInt(), anyString());
+			verify(mockClient, times(1)).queryTableEntityBundleAsyncStart(eq(emptyDeltaSql), anyLong(), (Long)any(), anyInt(), anyString());
+		} finally {
+			replicaFile.delete();
+		}
+	}
+
 }
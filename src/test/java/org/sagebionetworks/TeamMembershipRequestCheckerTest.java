@@ -0,0 +1,95 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.reflection.model.PaginatedResults;
+import org.sagebionetworks.repo.model.MembershipRequest;
+
+public class TeamMembershipRequestCheckerTest {
+	private static final String TEAM_ID = "999";
+	private static final int TEAM_REQUEST_COUNT = 120;
+	
+	private SynapseClient synapseClient;
+	private TeamMembershipRequestChecker checker;
+	
+	private static PaginatedResults<MembershipRequest> createPage(long total, List<String> userIds) {
+		PaginatedResults<MembershipRequest> pgs = new PaginatedResults<MembershipRequest>();
+		List<MembershipRequest> results = new ArrayList<MembershipRequest>();
+		for (String userId : userIds) {
+			MembershipRequest mr = new MembershipRequest();
+			mr.setTeamId(TEAM_ID);
+			mr.setUserId(userId);
+			results.add(mr);
+		}
+		pgs.setResults(results);
+		pgs.setTotalNumberOfResults(total);
+		return pgs;
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		synapseClient = mock(SynapseClient.class);
+		// the team has requests from users 0 through 119
+		for (int offset=0; offset<TEAM_REQUEST_COUNT; offset+=50) {
+			List<String> userIds = new ArrayList<String>();
+			for (int i=offset; i<offset+50 && i<TEAM_REQUEST_COUNT; i++) {
+				userIds.add(""+i);
+				when(synapseClient.getOpenMembershipRequests(TEAM_ID, ""+i, 1L, 0L)).
+					thenReturn(createPage(1L, userIds.subList(userIds.size()-1, userIds.size())));
+			}
+			when(synapseClient.getOpenMembershipRequests(eq(TEAM_ID), (String)isNull(), eq(50L), eq((long)offset))).
+				thenReturn(createPage(TEAM_REQUEST_COUNT, userIds));
+		}
+		when(synapseClient.getOpenMembershipRequests(TEAM_ID, "1000", 1L, 0L)).
+			thenReturn(createPage(0L, new ArrayList<String>()));
+		checker = new TeamMembershipRequestChecker(synapseClient);
+	}
+
+	@Test
+	public void testSingleUser() throws Exception {
+		assertEquals(new HashSet<String>(Arrays.asList("70")), 
+				checker.getUsersWithMembershipRequests(TEAM_ID, Arrays.asList("70")));
+		verify(synapseClient, never()).getOpenMembershipRequests(anyString(), (String)isNull(), anyLong(), anyLong());
+	}
+
+	@Test
+	public void testManyUsers() throws Exception {
+		List<String> userIds = Arrays.asList(new String[] {"1", "2", "60", "61", "110", "1000"});
+		Set<String> expected = new HashSet<String>(Arrays.asList(new String[] {"1", "2", "60", "61", "110"}));
+		assertEquals(expected, checker.getUsersWithMembershipRequests(TEAM_ID, userIds));
+		// all three pages are read, with no individual checks
+		verify(synapseClient, times(3)).getOpenMembershipRequests(anyString(), (String)isNull(), anyLong(), anyLong());
+		verify(synapseClient, never()).getOpenMembershipRequests(TEAM_ID, "1000", 1L, 0L);
+	}
+
+	@Test
+	public void testSwitchToIndividualChecks() throws Exception {
+		// once user 1 is found there are two users left but also two pages, so it's better to check individually
+		List<String> userIds = Arrays.asList(new String[] {"1", "60", "1000"});
+		Set<String> expected = new HashSet<String>(Arrays.asList(new String[] {"1", "60"}));
+		assertEquals(expected, checker.getUsersWithMembershipRequests(TEAM_ID, userIds));
+		verify(synapseClient, times(1)).getOpenMembershipRequests(anyString(), (String)isNull(), anyLong(), anyLong());
+		verify(synapseClient).getOpenMembershipRequests(TEAM_ID, "60", 1L, 0L);
+		verify(synapseClient).getOpenMembershipRequests(TEAM_ID, "1000", 1L, 0L);
+		verify(synapseClient, never()).getOpenMembershipRequests(TEAM_ID, "1", 1L, 0L);
+	}
+
+}
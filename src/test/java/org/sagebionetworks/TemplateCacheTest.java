@@ -0,0 +1,101 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.repo.model.FileEntity;
+
+public class TemplateCacheTest {
+
+	private SynapseClient synapseClient;
+	private TemplateCache cache;
+	private long now;
+	private File dir;
+
+	@Before
+	public void before() throws Exception {
+		synapseClient = mock(SynapseClient.class);
+		now = 1000000L;
+		cache = new TemplateCache(synapseClient) {
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+		dir = File.createTempFile("templates", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void after() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	// makes the given content the current version of the template
+	private void setTemplate(String templateId, long versionNumber, String etag, String content) throws Exception {
+		FileEntity entity = new FileEntity();
+		entity.setId(templateId);
+		entity.setVersionNumber(versionNumber);
+		entity.setEtag(etag);
+		when(synapseClient.getEntityById(templateId)).thenReturn(entity);
+		File file = new File(dir, templateId+"."+versionNumber+"."+etag);
+		FileUtils.writeStringToFile(file, content, "utf-8");
+		when(synapseClient.getFileEntityTemporaryUrlForVersion(templateId, versionNumber)).thenReturn(file.toURI().toURL());
+	}
+
+	@Test
+	public void testRevalidation() throws Exception {
+		setTemplate("syn1", 1L, "etag1", "Gr\u00fc\u00dfe v1");
+		assertEquals("Gr\u00fc\u00dfe v1", cache.getTemplate("syn1"));
+
+		// within the revalidation period the entity isn't checked
+		now += TemplateCache.REVALIDATION_MILLIS-1;
+		assertEquals("Gr\u00fc\u00dfe v1", cache.getTemplate("syn1"));
+		verify(synapseClient, times(1)).getEntityById("syn1");
+
+		// after it, the entity is checked but, if unchanged, not downloaded again
+		now += 1;
+		assertEquals("Gr\u00fc\u00dfe v1", cache.getTemplate("syn1"));
+		verify(synapseClient, times(2)).getEntityById("syn1");
+		verify(synapseClient, times(1)).getFileEntityTemporaryUrlForVersion("syn1", 1L);
+
+		// a template updated in place is downloaded again
+		now += TemplateCache.REVALIDATION_MILLIS;
+		setTemplate("syn1", 1L, "etag2", "v1 updated");
+		assertEquals("v1 updated", cache.getTemplate("syn1"));
+
+		// as is a new version
+		now += TemplateCache.REVALIDATION_MILLIS;
+		setTemplate("syn1", 2L, "etag3", "v2");
+		assertEquals("v2", cache.getTemplate("syn1"));
+		verify(synapseClient, times(1)).getFileEntityTemporaryUrlForVersion("syn1", 2L);
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		for (int i=0; i<=TemplateCache.MAX_TEMPLATES; i++) {
+			setTemplate("syn"+i, 1L, "etag", "template "+i);
+			assertEquals("template "+i, cache.getTemplate("syn"+i));
+		}
+		now += TemplateCache.REVALIDATION_MILLIS;
+
+		// the most recently used are still held, so are just revalidated...
+		assertEquals("template 1", cache.getTemplate("syn1"));
+		verify(synapseClient, times(1)).getFileEntityTemporaryUrlForVersion("syn1", 1L);
+		// ...but the least recently used has been evicted and is downloaded again
+		assertEquals("template 0", cache.getTemplate("syn0"));
+		verify(synapseClient, times(2)).getFileEntityTemporaryUrlForVersion("syn0", 1L);
+	}
+
+}
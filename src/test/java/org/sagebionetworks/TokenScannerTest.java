@@ -0,0 +1,44 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TokenScannerTest {
+	
+	private static final TokenScanner SCANNER = new TokenScanner("==A==", "==B==");
+	
+	private static List<String> scanBoth(String in) throws Exception {
+		List<String> result = SCANNER.scan(in);
+		assertEquals(result, SCANNER.scan(in.getBytes("utf-8")));
+		return result;
+	}
+
+	@Test
+	public void testScan() throws Exception {
+		assertEquals(Arrays.asList(new String[] {"foo", "bar"}), scanBoth("x==A==foo==A==y==A==bar==A==z"));
+		// each terminator is matched independently
+		assertEquals(Arrays.asList(new String[] {"a==A==b", "b==B=="}), scanBoth("==B==a==A==b==B====A==c==A=="));
+		// whitespace is removed
+		assertEquals(Collections.singletonList("foobar"), scanBoth("==A==\n fo\to\r\nbar \n==A=="));
+		// an unterminated token is ignored
+		assertEquals(Collections.singletonList("foo"), scanBoth("==A==foo==A====A==bar"));
+		assertEquals(Collections.EMPTY_LIST, scanBoth("no tokens here"));
+		// non-ASCII text is decoded as UTF-8
+		assertEquals(Arrays.asList(new String[] {"M\u00fcller|\u65e5\u672c"}), scanBoth("\u00e9==A==M\u00fcller|\u65e5\u672c==A=="));
+	}
+	
+	@Test
+	public void testOverlappingTerminators() throws Exception {
+		// as with indexOf(), an occurrence overlapping the previous one is not recognized
+		assertEquals(Collections.singletonList(""), scanBoth("==A====A==A=="));
+		assertEquals(Collections.singletonList(""), new TokenScanner("aa").scan("aaaa"));
+		assertEquals(Collections.singletonList(""), new TokenScanner("aa").scan("aaaaa"));
+		assertEquals(Arrays.asList(new String[] {"", "b"}), new TokenScanner("aa").scan("aaaaaabaa"));
+	}
+
+}
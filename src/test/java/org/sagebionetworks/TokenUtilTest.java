@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -134,7 +135,7 @@ public class TokenUtilTest {
  		List<Long> arList = Collections.singletonList(111L);
  		settings.setAccessRequirementIds(arList);
  		settings.setApplicationTeamId(TEAM_ID);
- 		String token = TokenUtil.createToken(""+userId, now, settings, mrExpiration);
+ 		String token = TokenUtil.createV2Token(""+userId, now, settings, mrExpiration);
  		Set<TokenAnalysisResult> tars = TokenUtil.parseTokensFromInput(token.getBytes(), createDatasetSettingsMap(), MOCK_MRC_RETURN_TRUE, currentTimeForTesting);
  		assertEquals(1, tars.size());
  		TokenAnalysisResult tar = tars.iterator().next();
@@ -150,6 +151,24 @@ public class TokenUtilTest {
  		assertEquals("PsychENCODE", tc.getTokenLabel());
  	}
     
+    @Test
+    public void testCreateAndParseV2TokenWithNonAsciiLabel() throws Exception {
+ 		long now = System.currentTimeMillis();
+ 		DatasetSettings settings = new DatasetSettings();
+ 		settings.setTokenLabel("Sch\u00e4del-\u00c9tude");
+ 		settings.setAccessRequirementIds(Collections.singletonList(111L));
+ 		settings.setApplicationTeamId(TEAM_ID);
+ 		String token = TokenUtil.createV2Token("273995", now, settings, now);
+ 		Set<TokenAnalysisResult> tars = TokenUtil.parseTokensFromInput(token.getBytes("utf-8"), createDatasetSettingsMap(), MOCK_MRC_RETURN_TRUE, currentTimeForTesting);
+ 		// (the input is also read as a message body, which without a charset header is
+ 		// ASCII, and so yields a second, invalid, token)
+ 		TokenAnalysisResult valid = null;
+ 		for (TokenAnalysisResult tar : tars) {
+ 			if (tar.isValid()) valid = tar;
+ 		}
+ 		assertEquals("Sch\u00e4del-\u00c9tude", valid.getTokenContent().getTokenLabel());
+    }
+    
     @Test
     public void testParseAnotherV2Token() throws Exception {
     	String token = "=============== SYNAPSE LINK TOKEN BOUNDARY ===============|PsychENCODE|3412738|3334673|5612415|null|1595262609995|S72aj7MXN5oyZduc4ivuKLDrMcA=|=============== SYNAPSE LINK TOKEN BOUNDARY ===============";
@@ -166,7 +185,7 @@ public class TokenUtilTest {
  		List<Long> arList = Collections.singletonList(111L);
  		settings.setAccessRequirementIds(arList);
  		settings.setApplicationTeamId(TEAM_ID);
- 		String token = TokenUtil.createToken(""+userId, now, settings, mrExpiration);
+ 		String token = TokenUtil.createV2Token(""+userId, now, settings, mrExpiration);
  		Set<TokenAnalysisResult> tars = TokenUtil.parseTokensFromInput(token.getBytes(), createDatasetSettingsMap(), MOCK_MRC_RETURN_TRUE, currentTimeForTesting);
  		assertEquals(1, tars.size());
  		TokenAnalysisResult tar = tars.iterator().next();
@@ -182,6 +201,85 @@ public class TokenUtilTest {
  		assertEquals("PsychENCODE", tc.getTokenLabel());
  	}
 
+	private static DatasetSettings createV3Settings() {
+		DatasetSettings settings = new DatasetSettings();
+		settings.setTokenLabel("PsychENCODE");
+		settings.setAccessRequirementIds(Arrays.asList(new Long[]{111L, 5612415L}));
+		settings.setApplicationTeamId(TEAM_ID);
+		return settings;
+	}
+	
+	@Test
+	public void testCreateAndParseV3Token() throws Exception {
+		Long userId = new Long(273995L);
+		long now = System.currentTimeMillis();
+		long mrExpiration = now - 1000L; // just make it different
+		DatasetSettings settings = createV3Settings();
+		String token = TokenUtil.createToken(""+userId, now, settings, mrExpiration);
+		assertTrue(token, token.contains(TokenUtil.V3_TOKEN_PREFIX));
+		assertTrue(token.length() < TokenUtil.createV2Token(""+userId, now, settings, mrExpiration).length());
+		Set<TokenAnalysisResult> tars = TokenUtil.parseTokensFromInput(token.getBytes(), createDatasetSettingsMap(), MOCK_MRC_RETURN_TRUE, currentTimeForTesting);
+		assertEquals(1, tars.size());
+		TokenAnalysisResult tar = tars.iterator().next();
+		assertTrue(tar.getReason(), tar.isValid());
+		assertEquals(userId, tar.getUserId());
+		TokenContent tc = tar.getTokenContent();
+		assertEquals(userId.longValue(), tc.getUserId());
+		assertEquals(settings.getAccessRequirementIds(), tc.getAccessRequirementIds());
+		assertEquals(TEAM_ID, tc.getApplicationTeamId());
+		// v3 tokens carry times to the second
+		assertEquals(new Date(mrExpiration/1000L*1000L), tc.getMembershipRequestExpiration());
+		assertEquals(new Date(now/1000L*1000L), tc.getTimestamp());
+		assertEquals("PsychENCODE", tc.getTokenLabel());
+	}
+	
+	@Test
+	public void testParseV3TokenWithNullMembershipRequestExpirationAndGarbage() throws Exception {
+		Long userId = new Long(273995L);
+		long now = System.currentTimeMillis();
+		String token = TokenUtil.createV3Token(""+userId, now, createV3Settings(), null);
+		// mail clients may add characters around the token
+		String fileContent= TokenUtil.TOKEN_TERMINATOR+"\\\n"+token+"}\n"+TokenUtil.TOKEN_TERMINATOR;
+		Set<TokenAnalysisResult> tars = TokenUtil.parseTokensFromInput(fileContent.getBytes(), createDatasetSettingsMap(), MOCK_MRC_RETURN_TRUE, currentTimeForTesting);
+		assertEquals(1, tars.size());
+		TokenAnalysisResult tar = tars.iterator().next();
+		assertTrue(tar.getReason(), tar.isValid());
+		assertNull(tar.getTokenContent().getMembershipRequestExpiration());
+	}
+	
+	@Test
+	public void testParseTamperedV3Token() throws Exception {
+		String token = TokenUtil.createV3Token("273995", System.currentTimeMillis(), createV3Settings(), null);
+		// change the last character of the signature
+		char last = token.charAt(token.length()-1);
+		String tampered = token.substring(0, token.length()-1)+(last=='A'?'B':'A');
+		TokenAnalysisResult tar = TokenUtil.parseToken(tampered);
+		assertFalse(tar.isValid());
+		assertTrue(tar.getReason(), tar.getReason().startsWith("Token has an invalid digital signature"));
+		
+		tar = TokenUtil.parseToken(TokenUtil.V3_TOKEN_PREFIX+"AwQ");
+		assertFalse(tar.isValid());
+		assertTrue(tar.getReason(), tar.getReason().startsWith("Incorrectly formatted token"));
+	}
+
+	@Test
+	public void testParseV3TokenWithExcessiveLengths() throws Exception {
+		byte[] signature = new byte[16];
+		// a label length of 2^31-1, followed by a signature's worth of bytes
+		byte[] hugeLabel = new byte[6+signature.length];
+		System.arraycopy(new byte[] {3, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07}, 0, hugeLabel, 0, 6);
+		TokenAnalysisResult tar = TokenUtil.parseToken(TokenUtil.V3_TOKEN_PREFIX+Base64.encodeBase64URLSafeString(hugeLabel));
+		assertFalse(tar.isValid());
+		assertTrue(tar.getReason(), tar.getReason().startsWith("Incorrectly formatted token"));
+		
+		// an empty label, user 1, team 2, then an access requirement count of 2^31-1
+		byte[] hugeCount = new byte[9+signature.length];
+		System.arraycopy(new byte[] {3, 0, 1, 2, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07}, 0, hugeCount, 0, 9);
+		tar = TokenUtil.parseToken(TokenUtil.V3_TOKEN_PREFIX+Base64.encodeBase64URLSafeString(hugeCount));
+		assertFalse(tar.isValid());
+		assertTrue(tar.getReason(), tar.getReason().startsWith("Incorrectly formatted token"));
+	}
+
 	@Test
 	public void testParseTokenFromMessageContent() throws Exception {
 		Long userId = new Long(273995L);
@@ -0,0 +1,81 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseServerException;
+import org.sagebionetworks.repo.model.UserProfile;
+
+public class UserProfileCacheTest {
+
+	private SynapseClient synapseClient;
+	private UserProfileCache cache;
+
+	@Before
+	public void before() {
+		synapseClient = mock(SynapseClient.class);
+		cache = new UserProfileCache(synapseClient);
+	}
+
+	private static UserProfile createProfile(String userId) {
+		UserProfile profile = new UserProfile();
+		profile.setOwnerId(userId);
+		return profile;
+	}
+
+	@Test
+	public void testRepeatLookupIsCached() throws Exception {
+		UserProfile profile = createProfile("111");
+		when(synapseClient.getUserProfile("111")).thenReturn(profile);
+		assertSame(profile, cache.getUserProfile("111"));
+		assertSame(profile, cache.getUserProfile("111"));
+		verify(synapseClient, times(1)).getUserProfile("111");
+	}
+
+	@Test
+	public void testPrefetch() throws Exception {
+		UserProfile profile111 = createProfile("111");
+		UserProfile profile222 = createProfile("222");
+		when(synapseClient.listUserProfiles(Arrays.asList(new Long[] {111L, 222L}))).
+			thenReturn(Arrays.asList(new UserProfile[] {profile111, profile222}));
+		cache.prefetch(Arrays.asList(new String[] {"111", "222", "111"}));
+		assertSame(profile111, cache.getUserProfile("111"));
+		assertSame(profile222, cache.getUserProfile("222"));
+		verify(synapseClient, never()).getUserProfile("111");
+
+		// profiles already held are not fetched again
+		cache.prefetch(Collections.singletonList("111"));
+		verify(synapseClient, times(1)).listUserProfiles(anyListOf(Long.class));
+	}
+
+	@Test
+	public void testFailedFetchIsNotCached() throws Exception {
+		UserProfile profile = createProfile("111");
+		when(synapseClient.getUserProfile("111")).
+			thenThrow(new SynapseServerException(500, "unavailable")).
+			thenReturn(profile);
+		try {
+			cache.getUserProfile("111");
+			fail("SynapseException expected");
+		} catch (SynapseException e) {
+			// as expected
+		}
+		// the next lookup tries again
+		assertSame(profile, cache.getUserProfile("111"));
+		verify(synapseClient, times(2)).getUserProfile("111");
+	}
+
+}